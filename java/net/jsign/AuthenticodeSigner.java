@@ -26,44 +26,27 @@ import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1EncodableVector;
-import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.ASN1Object;
 import org.bouncycastle.asn1.DERSet;
 import org.bouncycastle.asn1.cms.Attribute;
 import org.bouncycastle.asn1.cms.AttributeTable;
-import org.bouncycastle.asn1.cms.CMSAttributes;
-import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
-import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaCertStore;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
-import org.bouncycastle.cms.CMSAttributeTableGenerator;
-import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.cms.DefaultCMSSignatureEncryptionAlgorithmFinder;
-import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
-import org.bouncycastle.cms.SignerInfoGenerator;
-import org.bouncycastle.cms.SignerInfoGeneratorBuilder;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationStore;
-import org.bouncycastle.cms.SignerInformationVerifier;
-import org.bouncycastle.cms.jcajce.JcaSignerInfoVerifierBuilder;
-import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
-import net.jsign.asn1.authenticode.AuthenticodeDigestCalculatorProvider;
 import net.jsign.asn1.authenticode.AuthenticodeObjectIdentifiers;
-import net.jsign.asn1.authenticode.AuthenticodeSignedDataGenerator;
-import net.jsign.asn1.authenticode.FilteredAttributeTableGenerator;
-import net.jsign.asn1.authenticode.SpcSpOpusInfo;
-import net.jsign.asn1.authenticode.SpcStatementType;
 import net.jsign.msi.MSIFile;
 import net.jsign.pe.DataDirectory;
 import net.jsign.pe.DataDirectoryType;
@@ -83,6 +66,7 @@ public class AuthenticodeSigner {
     protected Certificate[] chain;
     protected PrivateKey privateKey;
     protected DigestAlgorithm digestAlgorithm = DigestAlgorithm.getDefault();
+    protected List<DigestAlgorithm> nestedDigestAlgorithms = new ArrayList<>();
     protected String signatureAlgorithm;
     protected Provider signatureProvider;
     protected String programName;
@@ -95,6 +79,9 @@ public class AuthenticodeSigner {
     protected int timestampingRetries = -1;
     protected int timestampingRetryWait = -1;
 
+    /** The signing sessions reused for the files signed, indexed by digest algorithm */
+    private final Map<DigestAlgorithm, SigningSession> sessions = new ConcurrentHashMap<>();
+
     /**
      * Create a signer with the specified certificate chain and private key.
      *
@@ -258,6 +245,20 @@ public class AuthenticodeSigner {
         return this;
     }
 
+    /**
+     * Set the digest algorithms of the additional signatures nested into the
+     * primary signature (for example SHA-256 when the primary signature uses SHA-1).
+     * The digests of the file for all the algorithms are computed in a single pass.
+     * 
+     * @param algorithms the digest algorithms of the nested signatures
+     * @return the current signer
+     * @since 4.2
+     */
+    public AuthenticodeSigner withNestedDigestAlgorithms(DigestAlgorithm... algorithms) {
+        this.nestedDigestAlgorithms = new ArrayList<>(Arrays.asList(algorithms));
+        return this;
+    }
+
     /**
      * Explicitly sets the signature algorithm to use.
      * 
@@ -309,12 +310,106 @@ public class AuthenticodeSigner {
     }
 
     /**
-     * Sign the specified file.
+     * Sign the specified file. The signer can be shared by several threads
+     * signing different files concurrently.
      *
      * @param file the file to sign
      * @throws Exception if signing fails
      */
     public void sign(Signable file) throws Exception {
+        prepare(file);
+        
+        List<CMSSignedData> newSignatures = new ArrayList<>();
+        if (nestedDigestAlgorithms.isEmpty()) {
+            newSignatures.add(createSignedData(file));
+        } else {
+            // digest the file for all the algorithms at once
+            List<DigestAlgorithm> algorithms = getDigestAlgorithms();
+            List<ASN1Object> indirectData = file.createIndirectData(algorithms);
+            for (int i = 0; i < algorithms.size(); i++) {
+                newSignatures.add(createSignedData(indirectData.get(i), algorithms.get(i)));
+            }
+        }
+        
+        save(file, newSignatures);
+    }
+
+    /**
+     * Sign the specified files with a pipeline hiding the latency of the timestamping
+     * authority. The files are digested and signed sequentially by the calling thread,
+     * while the timestamping and the saving of the files are performed asynchronously
+     * by the executor. The digest and the signature of a file thus overlap with the
+     * timestamping of the previous files.
+     *
+     * @param files    the files to sign
+     * @param executor the executor timestamping and saving the files
+     * @return the futures completed when each file is signed and saved, in the order of the files
+     * @since 4.2
+     */
+    public List<CompletableFuture<Void>> sign(List<? extends Signable> files, Executor executor) {
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (Signable file : files) {
+            results.add(sign(file, executor));
+        }
+        
+        return results;
+    }
+
+    /**
+     * Sign the specified file asynchronously. The file is digested and signed by
+     * the calling thread, the timestamping and the saving of the file are performed
+     * by the executor. The calling thread can thus sign the next file while the
+     * timestamping authority processes the request.
+     *
+     * @param file     the file to sign
+     * @param executor the executor timestamping and saving the file
+     * @return the future completed when the file is signed and saved
+     * @since 4.2
+     */
+    public CompletableFuture<Void> sign(Signable file, Executor executor) {
+        try {
+            prepare(file);
+            
+            List<DigestAlgorithm> algorithms = getDigestAlgorithms();
+            List<ASN1Object> indirectData = file.createIndirectData(algorithms);
+            List<CompletableFuture<CMSSignedData>> signatures = new ArrayList<>();
+            for (int i = 0; i < algorithms.size(); i++) {
+                CMSSignedData sigData = createUntimestampedSignedData(indirectData.get(i), algorithms.get(i));
+                signatures.add(timestamping ? timestampAsync(algorithms.get(i), sigData, executor) : CompletableFuture.completedFuture(sigData));
+            }
+            
+            return CompletableFuture.allOf(signatures.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+                List<CMSSignedData> newSignatures = new ArrayList<>();
+                for (CompletableFuture<CMSSignedData> signature : signatures) {
+                    newSignatures.add(signature.join());
+                }
+                try {
+                    save(file, newSignatures);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (Exception e) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+    }
+
+    /**
+     * Returns the digest algorithm of the primary signature followed by the algorithms of the nested signatures.
+     */
+    private List<DigestAlgorithm> getDigestAlgorithms() {
+        List<DigestAlgorithm> algorithms = new ArrayList<>();
+        algorithms.add(digestAlgorithm);
+        algorithms.addAll(nestedDigestAlgorithms);
+        return algorithms;
+    }
+
+    /**
+     * Prepare the file before computing its digest (erase the previous signature if replaced).
+     */
+    private void prepare(Signable file) throws Exception {
         if (file instanceof PEFile) {
             PEFile pefile = (PEFile) file;
 
@@ -334,17 +429,29 @@ public class AuthenticodeSigner {
                 throw new UnsupportedOperationException("The file has an extended signature which isn't supported by Jsign, it can't be signed without replacing the existing signature");
             }
         }
-        
-        CMSSignedData sigData = createSignedData(file);
+    }
+
+    /**
+     * Add the new signatures to the file and save it. The first signature becomes the primary
+     * signature, unless the previous signatures are kept, and the others are nested.
+     */
+    private void save(Signable file, List<CMSSignedData> newSignatures) throws Exception {
+        newSignatures = new ArrayList<>(newSignatures);
+        CMSSignedData sigData = newSignatures.remove(0);
         
         if (!replace) {
             List<CMSSignedData> signatures = file.getSignatures();
             if (!signatures.isEmpty()) {
                 // append the nested signature
-                sigData = addNestedSignature(signatures.get(0), sigData);
+                newSignatures.add(0, sigData);
+                sigData = signatures.get(0);
             }
         }
         
+        for (CMSSignedData nestedSignature : newSignatures) {
+            sigData = addNestedSignature(sigData, nestedSignature);
+        }
+        
         file.setSignature(sigData);
         
         file.save();
@@ -362,126 +469,93 @@ public class AuthenticodeSigner {
      * @throws Exception if an error occurs
      */
     protected CMSSignedData createSignedData(Signable file) throws Exception {
-        // compute the signature
-        AuthenticodeSignedDataGenerator generator = createSignedDataGenerator();
-        CMSSignedData sigData = generator.generate(AuthenticodeObjectIdentifiers.SPC_INDIRECT_DATA_OBJID, file.createIndirectData(digestAlgorithm));
-        
-        // verify the signature
-        DigestCalculatorProvider digestCalculatorProvider = new AuthenticodeDigestCalculatorProvider();
-        SignerInformationVerifier verifier = new JcaSignerInfoVerifierBuilder(digestCalculatorProvider).build(chain[0].getPublicKey());
-        sigData.getSignerInfos().iterator().next().verify(verifier);
+        return createSignedData(file.createIndirectData(digestAlgorithm), digestAlgorithm);
+    }
+
+    /**
+     * Create the PKCS7 message with the signature and the timestamp.
+     * 
+     * @param indirectData    the SpcIndirectDataContent structure containing the digest of the file
+     * @param digestAlgorithm the digest algorithm used for the indirect data
+     * @return the PKCS7 message with the signature and the timestamp
+     * @throws Exception if an error occurs
+     * @since 4.2
+     */
+    protected CMSSignedData createSignedData(ASN1Object indirectData, DigestAlgorithm digestAlgorithm) throws Exception {
+        CMSSignedData sigData = createUntimestampedSignedData(indirectData, digestAlgorithm);
         
         // timestamping
         if (timestamping) {
-            Timestamper ts = timestamper;
-            if (ts == null) {
-                ts = Timestamper.create(tsmode);
-            }
-            if (tsaurlOverride != null) {
-                ts.setURLs(tsaurlOverride);
-            }
-            if (timestampingRetries != -1) {
-                ts.setRetries(timestampingRetries);
-            }
-            if (timestampingRetryWait != -1) {
-                ts.setRetryWait(timestampingRetryWait);
-            }
-            sigData = ts.timestamp(digestAlgorithm, sigData);
+            sigData = timestamp(digestAlgorithm, sigData);
         }
         
         return sigData;
     }
 
-    private AuthenticodeSignedDataGenerator createSignedDataGenerator() throws CMSException, OperatorCreationException, CertificateEncodingException {
-        // create content signer
-        final String sigAlg;
-        if (signatureAlgorithm != null) {
-            sigAlg = signatureAlgorithm;
-        } else if ("EC".equals(privateKey.getAlgorithm())) {
-            sigAlg = digestAlgorithm + "withECDSA";
-        } else {
-            sigAlg = digestAlgorithm + "with" + privateKey.getAlgorithm();
-        }
-        JcaContentSignerBuilder contentSignerBuilder = new JcaContentSignerBuilder(sigAlg);
-        if (signatureProvider != null) {
-            contentSignerBuilder.setProvider(signatureProvider);
-        }
-        ContentSigner shaSigner = contentSignerBuilder.build(privateKey);
+    /**
+     * Create the PKCS7 message with the signature, without the timestamp.
+     */
+    private CMSSignedData createUntimestampedSignedData(ASN1Object indirectData, DigestAlgorithm digestAlgorithm) throws Exception {
+        return getSession(digestAlgorithm).sign(indirectData);
+    }
 
-        DigestCalculatorProvider digestCalculatorProvider = new AuthenticodeDigestCalculatorProvider();
-        
-        // prepare the authenticated attributes
-        CMSAttributeTableGenerator attributeTableGenerator = new DefaultSignedAttributeTableGenerator(createAuthenticatedAttributes());
-        attributeTableGenerator = new FilteredAttributeTableGenerator(attributeTableGenerator, CMSAttributes.signingTime, CMSAttributes.cmsAlgorithmProtect);
-        
-        // fetch the signing certificate
-        X509CertificateHolder certificate = new JcaX509CertificateHolder((X509Certificate) chain[0]);
-        
-        // prepare the signerInfo with the extra authenticated attributes
-        SignerInfoGeneratorBuilder signerInfoGeneratorBuilder = new SignerInfoGeneratorBuilder(digestCalculatorProvider, new DefaultCMSSignatureEncryptionAlgorithmFinder(){
-            @Override
-            public AlgorithmIdentifier findEncryptionAlgorithm(final AlgorithmIdentifier signatureAlgorithm) {
-                //enforce "RSA" instead of "shaXXXRSA" for digest signature to be more like signtool
-                if (signatureAlgorithm.getAlgorithm().equals(PKCSObjectIdentifiers.sha256WithRSAEncryption) ||
-                    signatureAlgorithm.getAlgorithm().equals(PKCSObjectIdentifiers.sha384WithRSAEncryption) ||
-                    signatureAlgorithm.getAlgorithm().equals(PKCSObjectIdentifiers.sha512WithRSAEncryption)) {
-                    return new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption, DERNull.INSTANCE);
-                } else {
-                    return super.findEncryptionAlgorithm(signatureAlgorithm);
-                }
-            }
-        });
-        signerInfoGeneratorBuilder.setSignedAttributeGenerator(attributeTableGenerator);
-        SignerInfoGenerator signerInfoGenerator = signerInfoGeneratorBuilder.build(shaSigner, certificate);
-        
-        AuthenticodeSignedDataGenerator generator = new AuthenticodeSignedDataGenerator();
-        generator.addCertificates(new JcaCertStore(removeRoot(chain)));
-        generator.addSignerInfoGenerator(signerInfoGenerator);
-        
-        return generator;
+    /**
+     * Timestamp the specified signature.
+     */
+    private CMSSignedData timestamp(DigestAlgorithm digestAlgorithm, CMSSignedData sigData) throws Exception {
+        return getTimestamper().timestamp(digestAlgorithm, sigData);
     }
 
     /**
-     * Remove the root certificate from the chain, unless the chain consists in a single self signed certificate.
-     * 
-     * @param certificates the certificate chain to process
-     * @return the certificate chain without the root certificate
+     * Timestamp the specified signature asynchronously.
      */
-    private List<Certificate> removeRoot(Certificate[] certificates) {
-        List<Certificate> list = new ArrayList<>();
-        
-        if (certificates.length == 1) {
-            list.add(certificates[0]);
-        } else {
-            for (Certificate certificate : certificates) {
-                if (!isSelfSigned((X509Certificate) certificate)) {
-                    list.add(certificate);
-                }
-            }
+    private CompletableFuture<CMSSignedData> timestampAsync(DigestAlgorithm digestAlgorithm, CMSSignedData sigData, Executor executor) {
+        return getTimestamper().timestampAsync(digestAlgorithm, sigData, executor);
+    }
+
+    /**
+     * Returns the timestamper configured for this signer, or a new one if none was specified.
+     */
+    private Timestamper getTimestamper() {
+        Timestamper ts = timestamper != null ? timestamper : Timestamper.create(tsmode);
+        synchronized (ts) {
+            configure(ts);
         }
-        
-        return list;
+        return ts;
     }
 
-    private boolean isSelfSigned(X509Certificate certificate) {
-        return certificate.getSubjectDN().equals(certificate.getIssuerDN());
+    private void configure(Timestamper ts) {
+        if (tsaurlOverride != null) {
+            ts.setURLs(tsaurlOverride);
+        }
+        if (timestampingRetries != -1) {
+            ts.setRetries(timestampingRetries);
+        }
+        if (timestampingRetryWait != -1) {
+            ts.setRetryWait(timestampingRetryWait);
+        }
     }
 
     /**
-     * Creates the authenticated attributes for the SignerInfo section of the signature.
-     * 
-     * @return the authenticated attributes
+     * Returns the signing session for the specified digest algorithm, or creates
+     * a new one if the configuration of the signer changed.
      */
-    private AttributeTable createAuthenticatedAttributes() {
-        List<Attribute> attributes = new ArrayList<>();
-        
-        SpcStatementType spcStatementType = new SpcStatementType(AuthenticodeObjectIdentifiers.SPC_INDIVIDUAL_SP_KEY_PURPOSE_OBJID);
-        attributes.add(new Attribute(AuthenticodeObjectIdentifiers.SPC_STATEMENT_TYPE_OBJID, new DERSet(spcStatementType)));
-        
-        SpcSpOpusInfo spcSpOpusInfo = new SpcSpOpusInfo(programName, programURL);
-        attributes.add(new Attribute(AuthenticodeObjectIdentifiers.SPC_SP_OPUS_INFO_OBJID, new DERSet(spcSpOpusInfo)));
+    private SigningSession getSession(DigestAlgorithm digestAlgorithm) throws CertificateEncodingException, OperatorCreationException {
+        final String sigAlg;
+        if (signatureAlgorithm != null) {
+            sigAlg = signatureAlgorithm;
+        } else if ("EC".equals(privateKey.getAlgorithm())) {
+            sigAlg = digestAlgorithm + "withECDSA";
+        } else {
+            sigAlg = digestAlgorithm + "with" + privateKey.getAlgorithm();
+        }
 
-        return new AttributeTable(new DERSet(attributes.toArray(new ASN1Encodable[0])));
+        SigningSession session = sessions.get(digestAlgorithm);
+        if (session == null || !session.isValidFor(chain, privateKey, sigAlg, signatureProvider, programName, programURL)) {
+            session = new SigningSession(chain, privateKey, sigAlg, signatureProvider, programName, programURL);
+            sessions.put(digestAlgorithm, session);
+        }
+        return session;
     }
 
     /**
@@ -0,0 +1,531 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign;
+
+import java.io.Closeable;
+import java.io.File;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerId;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoVerifierBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.util.CollectionStore;
+import org.bouncycastle.util.Store;
+import org.bouncycastle.util.encoders.Hex;
+
+import net.jsign.asn1.authenticode.AuthenticodeDigestCalculatorProvider;
+import net.jsign.asn1.authenticode.AuthenticodeObjectIdentifiers;
+
+/**
+ * Verify the Authenticode signatures of files. For each signature (including
+ * the nested signatures) the verifier checks:
+ * <ul>
+ *   <li>that the digest of the file matches the digest in the SpcIndirectDataContent structure</li>
+ *   <li>the signature of the signer</li>
+ *   <li>the Authenticode and RFC 3161 timestamps</li>
+ *   <li>the certificate chains of the signer and of the timestamping authorities,
+ *       up to a trusted certificate (the JDK trust store by default, the revocation
+ *       isn't checked)</li>
+ * </ul>
+ *
+ * <p>The file is read only once for all the digest algorithms used by its signatures.
+ * The verifier is thread-safe, and the results of the certificate path validations
+ * are cached and shared by the threads, the files signed with the same certificate
+ * are thus validated only once.</p>
+ *
+ * @since 4.2
+ */
+public class AuthenticodeVerifier {
+
+    /** The trusted certificates (null to skip the certificate path validation) */
+    private Set<TrustAnchor> trustAnchors;
+
+    /**
+     * The certificate paths validated, indexed by certificate and embedded certificates,
+     * with the period during which all the certificates of the path are valid
+     */
+    private final Map<String, ValidityPeriod> certificatePathCache = new ConcurrentHashMap<>();
+
+    /**
+     * Period during which a certificate path is valid.
+     */
+    private static class ValidityPeriod {
+        private final Date notBefore;
+        private final Date notAfter;
+
+        ValidityPeriod(Date notBefore, Date notAfter) {
+            this.notBefore = notBefore;
+            this.notAfter = notAfter;
+        }
+
+        boolean contains(Date date) {
+            return !date.before(notBefore) && !date.after(notAfter);
+        }
+    }
+
+    /**
+     * Creates a verifier trusting the certificate authorities of the JDK trust store.
+     */
+    public AuthenticodeVerifier() {
+        try {
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init((KeyStore) null);
+            trustAnchors = new HashSet<>();
+            for (TrustManager trustManager : factory.getTrustManagers()) {
+                if (trustManager instanceof X509TrustManager) {
+                    for (X509Certificate certificate : ((X509TrustManager) trustManager).getAcceptedIssuers()) {
+                        trustAnchors.add(new TrustAnchor(certificate, null));
+                    }
+                }
+            }
+        } catch (NoSuchAlgorithmException | KeyStoreException e) {
+            throw new RuntimeException("Unable to load the default trust store", e);
+        }
+    }
+
+    /**
+     * Trust the certificates of the specified keystore instead of the JDK trust store.
+     *
+     * @param truststore the keystore holding the trusted certificates
+     * @return the current verifier
+     * @throws KeyStoreException if the keystore can't be read
+     */
+    public AuthenticodeVerifier withTrustStore(KeyStore truststore) throws KeyStoreException {
+        Set<TrustAnchor> trustAnchors = new HashSet<>();
+        for (String alias : Collections.list(truststore.aliases())) {
+            if (truststore.getCertificate(alias) instanceof X509Certificate) {
+                trustAnchors.add(new TrustAnchor((X509Certificate) truststore.getCertificate(alias), null));
+            }
+        }
+        this.trustAnchors = trustAnchors;
+        certificatePathCache.clear();
+        return this;
+    }
+
+    /**
+     * Enable or disable the validation of the certificate chains (enabled by default).
+     *
+     * @param validation <code>true</code> to validate the certificate chains, <code>false</code> otherwise
+     * @return the current verifier
+     */
+    public AuthenticodeVerifier withCertificatePathValidation(boolean validation) {
+        if (!validation) {
+            trustAnchors = null;
+        } else if (trustAnchors == null) {
+            trustAnchors = new AuthenticodeVerifier().trustAnchors;
+        }
+        certificatePathCache.clear();
+        return this;
+    }
+
+    /**
+     * Verify the signatures of the specified files concurrently.
+     *
+     * @param files   the files to verify
+     * @param threads the number of files verified concurrently
+     * @return the results of the verifications, in the order of the files
+     */
+    public List<VerificationResult> verify(List<File> files, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<VerificationResult>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(executor.submit(() -> verify(file)));
+            }
+
+            List<VerificationResult> results = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    VerificationResult result = new VerificationResult(files.get(i).getPath());
+                    result.addError("Unable to verify the file: " + e.getCause());
+                    results.add(result);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while verifying the files", e);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Verify the signatures of the specified file.
+     *
+     * @param file the file to verify
+     * @return the result of the verification
+     */
+    public VerificationResult verify(File file) {
+        try {
+            Signable signable = Signable.of(file);
+            try {
+                return verify(signable, file.getPath());
+            } finally {
+                if (signable instanceof Closeable) {
+                    ((Closeable) signable).close();
+                }
+            }
+        } catch (Exception e) {
+            VerificationResult result = new VerificationResult(file.getPath());
+            result.addError("Unable to verify the file: " + e.getMessage());
+            return result;
+        }
+    }
+
+    /**
+     * Verify the signatures of the specified file.
+     *
+     * @param file the file to verify
+     * @return the result of the verification
+     */
+    public VerificationResult verify(Signable file) {
+        return verify(file, file.toString());
+    }
+
+    private VerificationResult verify(Signable file, String name) {
+        VerificationResult result = new VerificationResult(name);
+
+        List<CMSSignedData> signatures;
+        try {
+            signatures = file.getSignatures();
+        } catch (Exception e) {
+            result.addError("Unable to read the signatures: " + e.getMessage());
+            return result;
+        }
+        if (signatures.isEmpty()) {
+            result.addError("No signature found");
+            return result;
+        }
+        result.setSignatureCount(signatures.size());
+
+        // extract the digests signed
+        List<DigestInfo> digests = new ArrayList<>();
+        for (CMSSignedData signature : signatures) {
+            digests.add(getIndirectDataDigest(signature));
+        }
+
+        // compute the digests of the file with all the algorithms at once
+        Map<String, byte[]> fileDigests = new HashMap<>();
+        try {
+            Set<DigestAlgorithm> algorithms = new LinkedHashSet<>();
+            for (DigestInfo digest : digests) {
+                DigestAlgorithm algorithm = digest != null ? DigestAlgorithm.of(digest.getAlgorithmId().getAlgorithm()) : null;
+                if (algorithm != null) {
+                    algorithms.add(algorithm);
+                }
+            }
+            List<MessageDigest> messageDigests = new ArrayList<>();
+            for (DigestAlgorithm algorithm : algorithms) {
+                messageDigests.add(algorithm.getMessageDigest());
+            }
+            byte[][] values = file.computeDigests(messageDigests.toArray(new MessageDigest[0]));
+            int i = 0;
+            for (DigestAlgorithm algorithm : algorithms) {
+                fileDigests.put(algorithm.oid.getId(), values[i++]);
+            }
+        } catch (Exception e) {
+            result.addError("Unable to compute the digest of the file: " + e.getMessage());
+            return result;
+        }
+
+        for (int i = 0; i < signatures.size(); i++) {
+            String prefix = "Signature " + (i + 1) + ": ";
+            try {
+                verify(signatures.get(i), digests.get(i), fileDigests, prefix, result);
+            } catch (Exception e) {
+                result.addError(prefix + "unable to verify the signature (" + e.getMessage() + ")");
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Verify one signature.
+     */
+    private void verify(CMSSignedData signature, DigestInfo digest, Map<String, byte[]> fileDigests, String prefix, VerificationResult result) throws Exception {
+        // check the digest of the file
+        if (digest == null) {
+            result.addError(prefix + "invalid SpcIndirectDataContent structure");
+        } else {
+            byte[] fileDigest = fileDigests.get(digest.getAlgorithmId().getAlgorithm().getId());
+            if (fileDigest == null) {
+                result.addError(prefix + "unsupported digest algorithm " + digest.getAlgorithmId().getAlgorithm());
+            } else if (!MessageDigest.isEqual(fileDigest, digest.getDigest())) {
+                result.addError(prefix + "the digest of the file doesn't match the signed digest");
+            }
+        }
+
+        // check the signature of the signer
+        SignerInformation signer = signature.getSignerInfos().getSigners().iterator().next();
+        X509CertificateHolder certificate = getCertificate(signature.getCertificates(), signer);
+        if (certificate == null) {
+            result.addError(prefix + "signer certificate not found");
+            return;
+        }
+
+        SignerInformation detachedSigner = getDetachedSignedData(signature).getSignerInfos().get(signer.getSID());
+        if (!detachedSigner.verify(new JcaSignerInfoVerifierBuilder(new AuthenticodeDigestCalculatorProvider()).build(certificate))) {
+            result.addError(prefix + "invalid signature");
+        }
+
+        // check the timestamp
+        Date signingTime = verifyTimestamp(signature, signer, prefix, result);
+
+        // check the certificate chain, at the time of the timestamp if any
+        String error = validateCertificatePath(certificate, signature.getCertificates(), signingTime != null ? signingTime : new Date());
+        if (!error.isEmpty()) {
+            result.addError(prefix + "invalid certificate chain for " + certificate.getSubject() + " (" + error + ")");
+        }
+    }
+
+    /**
+     * Verify the Authenticode or RFC 3161 timestamp of the signer.
+     *
+     * @return the time of the timestamp, or null if the signature isn't timestamped or if the timestamp is invalid
+     */
+    private Date verifyTimestamp(CMSSignedData signature, SignerInformation signer, String prefix, VerificationResult result) throws Exception {
+        AttributeTable unsignedAttributes = signer.getUnsignedAttributes();
+        if (unsignedAttributes == null) {
+            return null;
+        }
+
+        Date signingTime = null;
+
+        // Authenticode timestamp (countersignature)
+        for (SignerInformation counterSignature : signer.getCounterSignatures().getSigners()) {
+            X509CertificateHolder certificate = getCertificate(signature.getCertificates(), counterSignature);
+            if (certificate == null) {
+                result.addError(prefix + "timestamping certificate not found");
+            } else if (!counterSignature.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate))) {
+                result.addError(prefix + "invalid timestamp");
+            } else {
+                Attribute time = counterSignature.getSignedAttributes() != null ? counterSignature.getSignedAttributes().get(CMSAttributes.signingTime) : null;
+                signingTime = time != null ? Time.getInstance(time.getAttrValues().getObjectAt(0)).getDate() : null;
+                String error = validateCertificatePath(certificate, signature.getCertificates(), signingTime != null ? signingTime : new Date());
+                if (!error.isEmpty()) {
+                    result.addError(prefix + "invalid certificate chain for the timestamping authority " + certificate.getSubject() + " (" + error + ")");
+                }
+            }
+        }
+
+        // RFC 3161 timestamp
+        Attribute rfc3161 = unsignedAttributes.get(AuthenticodeObjectIdentifiers.SPC_RFC3161_OBJID);
+        if (rfc3161 != null) {
+            TimeStampToken token = new TimeStampToken(ContentInfo.getInstance(rfc3161.getAttrValues().getObjectAt(0)));
+            Store<X509CertificateHolder> certificates = getCertificates(token);
+            X509CertificateHolder certificate = getCertificate(certificates, token.getSID());
+            MessageDigest digest = MessageDigest.getInstance(token.getTimeStampInfo().getMessageImprintAlgOID().getId());
+            if (!MessageDigest.isEqual(digest.digest(signer.getSignature()), token.getTimeStampInfo().getMessageImprintDigest())) {
+                result.addError(prefix + "the timestamp doesn't match the signature");
+            } else if (certificate == null) {
+                result.addError(prefix + "timestamping certificate not found");
+            } else if (!token.isSignatureValid(new JcaSimpleSignerInfoVerifierBuilder().build(certificate))) {
+                result.addError(prefix + "invalid timestamp");
+            } else {
+                signingTime = token.getTimeStampInfo().getGenTime();
+                String error = validateCertificatePath(certificate, certificates, signingTime);
+                if (!error.isEmpty()) {
+                    result.addError(prefix + "invalid certificate chain for the timestamping authority " + certificate.getSubject() + " (" + error + ")");
+                }
+            }
+        }
+
+        return signingTime;
+    }
+
+    /**
+     * Validate the certificate path from the specified certificate to a trusted certificate.
+     * A valid path is cached for the set of certificates embedded in the signature (they
+     * provide the intermediate certificates), and reused only for the dates within the
+     * validity period of all the certificates of the path. The invalid paths aren't cached.
+     *
+     * @return an empty string if the path is valid, the error message otherwise
+     */
+    private String validateCertificatePath(X509CertificateHolder certificate, Store<X509CertificateHolder> certificates, Date date) throws Exception {
+        if (trustAnchors == null) {
+            return "";
+        }
+
+        Collection<X509CertificateHolder> candidates = certificates.getMatches(null);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(certificate.getEncoded());
+        for (X509CertificateHolder candidate : candidates) {
+            digest.update(candidate.getEncoded());
+        }
+        String key = Hex.toHexString(digest.digest());
+
+        ValidityPeriod period = certificatePathCache.get(key);
+        if (period != null && period.contains(date)) {
+            return "";
+        }
+
+        // the path is built outside of the map to avoid blocking the other threads
+        try {
+            certificatePathCache.put(key, buildCertificatePath(certificate, candidates, date));
+            return "";
+        } catch (CertificateException e) {
+            return "invalid certificate: " + e.getMessage();
+        } catch (Exception e) {
+            return e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+    }
+
+    /**
+     * Builds the certificate path from the specified certificate to a trusted certificate.
+     *
+     * @return the period during which all the certificates of the path, including the trust anchor, are valid
+     */
+    private ValidityPeriod buildCertificatePath(X509CertificateHolder certificate, Collection<X509CertificateHolder> certificates, Date date) throws Exception {
+        JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+        List<X509Certificate> intermediates = new ArrayList<>();
+        for (X509CertificateHolder holder : certificates) {
+            intermediates.add(converter.getCertificate(holder));
+        }
+
+        X509CertSelector target = new X509CertSelector();
+        target.setCertificate(converter.getCertificate(certificate));
+
+        PKIXBuilderParameters parameters = new PKIXBuilderParameters(trustAnchors, target);
+        parameters.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(intermediates)));
+        parameters.setRevocationEnabled(false);
+        parameters.setDate(date);
+
+        PKIXCertPathBuilderResult result = (PKIXCertPathBuilderResult) CertPathBuilder.getInstance("PKIX").build(parameters);
+
+        List<X509Certificate> path = new ArrayList<>();
+        for (Certificate c : result.getCertPath().getCertificates()) {
+            path.add((X509Certificate) c);
+        }
+        if (result.getTrustAnchor().getTrustedCert() != null) {
+            path.add(result.getTrustAnchor().getTrustedCert());
+        }
+
+        Date notBefore = new Date(Long.MIN_VALUE);
+        Date notAfter = new Date(Long.MAX_VALUE);
+        for (X509Certificate c : path) {
+            if (c.getNotBefore().after(notBefore)) {
+                notBefore = c.getNotBefore();
+            }
+            if (c.getNotAfter().before(notAfter)) {
+                notAfter = c.getNotAfter();
+            }
+        }
+        return new ValidityPeriod(notBefore, notAfter);
+    }
+
+    /**
+     * Returns the digest in the SpcIndirectDataContent structure of the signature,
+     * or null if the structure is invalid.
+     */
+    private DigestInfo getIndirectDataDigest(CMSSignedData signature) {
+        try {
+            ASN1Encodable content = SignedData.getInstance(signature.toASN1Structure().getContent()).getEncapContentInfo().getContent();
+            return DigestInfo.getInstance(ASN1Sequence.getInstance(content).getObjectAt(1));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a copy of the signed data with the SpcIndirectDataContent structure as
+     * signed content, the digest of the content being computed by the Authenticode
+     * digest calculator.
+     */
+    private CMSSignedData getDetachedSignedData(CMSSignedData signature) throws Exception {
+        ContentInfo contentInfo = signature.toASN1Structure();
+        ContentInfo encapContentInfo = SignedData.getInstance(contentInfo.getContent()).getEncapContentInfo();
+        byte[] content = encapContentInfo.getContent().toASN1Primitive().getEncoded("DER");
+        return new CMSSignedData(new CMSProcessableByteArray(encapContentInfo.getContentType(), content), contentInfo);
+    }
+
+    private X509CertificateHolder getCertificate(Store<X509CertificateHolder> certificates, SignerInformation signer) {
+        return getCertificate(certificates, signer.getSID());
+    }
+
+    private X509CertificateHolder getCertificate(Store<X509CertificateHolder> certificates, SignerId sid) {
+        for (X509CertificateHolder certificate : certificates.getMatches(null)) {
+            if (sid.match(certificate)) {
+                return certificate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the certificates embedded in the timestamp token (the store returned by BouncyCastle isn't typed).
+     */
+    private static Store<X509CertificateHolder> getCertificates(TimeStampToken token) {
+        Store<?> store = token.getCertificates();
+        List<X509CertificateHolder> certificates = new ArrayList<>();
+        for (Object certificate : store.getMatches(null)) {
+            if (certificate instanceof X509CertificateHolder) {
+                certificates.add((X509CertificateHolder) certificate);
+            }
+        }
+        return new CollectionStore<>(certificates);
+    }
+}
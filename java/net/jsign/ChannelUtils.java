@@ -17,15 +17,15 @@
 package net.jsign;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.util.Arrays;
 
 /**
  * Helper class for Channel operations.
@@ -34,8 +34,43 @@ import java.security.MessageDigest;
  */
 public class ChannelUtils {
 
+    /** Size of the buffers used for reading and copying the channels */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Direct buffer reused by the copy and digest operations of the current thread.
+     * Reading a FileChannel into a direct buffer avoids the intermediate copy
+     * performed by the JDK with heap buffers.
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    /**
+     * Returns the buffer of the current thread, cleared and ready to be filled.
+     */
+    private static ByteBuffer getBuffer() {
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        return buffer;
+    }
+
     public static void copy(SeekableByteChannel src, WritableByteChannel dest) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        if (src instanceof FileChannel) {
+            // let the operating system transfer the data without copying it through the user space
+            FileChannel channel = (FileChannel) src;
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                long transferred = channel.transferTo(position, size - position, dest);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            channel.position(position);
+            return;
+        }
+
+        ByteBuffer buffer = getBuffer();
         src.position(0);
 
         while (src.position() < src.size()) {
@@ -47,10 +82,26 @@ public class ChannelUtils {
     }
 
     public static void copy(SeekableByteChannel src, SeekableByteChannel dest, long length) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
         long remaining = length;
         long destOffset = dest.position();
         long srcOffset = src.position();
+
+        if (src instanceof FileChannel && src != dest) {
+            // let the operating system transfer the data without copying it through the user space
+            FileChannel channel = (FileChannel) src;
+            while (remaining > 0) {
+                long transferred = channel.transferTo(srcOffset, remaining, dest);
+                if (transferred <= 0) {
+                    break;
+                }
+                remaining -= transferred;
+                srcOffset += transferred;
+            }
+            src.position(srcOffset);
+            return;
+        }
+
+        ByteBuffer buffer = getBuffer();
         while (remaining > 0) {
             int avail = (int) Math.min(remaining, buffer.capacity());
             buffer.clear();
@@ -70,25 +121,41 @@ public class ChannelUtils {
 
     /**
      * Insert data into a SeekableByteChannel at the specified position,
-     * shifting the data after the insertion point.
+     * shifting the data after the insertion point. The data is shifted in
+     * place, starting from the end of the channel, without using a temporary file.
      */
     public static void insert(SeekableByteChannel channel, long position, byte[] data) throws IOException {
         if (position > channel.size()) {
             throw new IOException("Cannot insert data after the end of the file");
         }
 
-        File backupFile = File.createTempFile("jsign", ".tmp");
-        try (SeekableByteChannel backupChannel = Files.newByteChannel(backupFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
-            copy(channel, backupChannel);
+        // move the data after the insertion point, one block at a time from the end
+        ByteBuffer buffer = getBuffer();
+        long end = channel.size();
+        while (end > position) {
+            int length = (int) Math.min(buffer.capacity(), end - position);
+            long start = end - length;
 
-            channel.position(position);
-            channel.write(ByteBuffer.wrap(data));
+            buffer.clear();
+            buffer.limit(length);
+            channel.position(start);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of file at position " + channel.position());
+                }
+            }
 
-            backupChannel.position(position);
-            copy(backupChannel, channel, backupChannel.size() - position);
-        } finally {
-            backupFile.delete();
+            buffer.flip();
+            channel.position(start + data.length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            end = start;
         }
+
+        channel.position(position);
+        channel.write(ByteBuffer.wrap(data));
     }
 
     /**
@@ -103,18 +170,21 @@ public class ChannelUtils {
     public static void updateDigest(SeekableByteChannel channel, MessageDigest digest, long startOffset, long endOffset) throws IOException {
         channel.position(startOffset);
 
-        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        ByteBuffer buffer = getBuffer();
 
         long position = startOffset;
         while (position < endOffset) {
             buffer.clear();
             buffer.limit((int) Math.min(buffer.capacity(), endOffset - position));
-            channel.read(buffer);
-            buffer.rewind();
+            int length = channel.read(buffer);
+            if (length <= 0) {
+                break;
+            }
+            buffer.flip();
 
             digest.update(buffer);
 
-            position += buffer.limit();
+            position += length;
         }
     }
 
@@ -122,6 +192,10 @@ public class ChannelUtils {
      * Read a null terminated string from the specified channel.
      */
     public static byte[] readNullTerminatedString(ByteChannel channel) throws IOException {
+        if (channel instanceof SeekableByteChannel) {
+            return readNullTerminatedString((SeekableByteChannel) channel);
+        }
+
         try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
             byte singleChar;
             ByteBuffer buffer = ByteBuffer.allocate(1);
@@ -136,4 +210,56 @@ public class ChannelUtils {
             return bos.toByteArray();
         }
     }
+
+    /**
+     * Read a null terminated string from the specified channel. The channel is
+     * read by blocks and positioned right after the null terminator on return.
+     *
+     * @param channel the channel to read from
+     * @return the bytes of the string, including the null terminator
+     * @throws IOException if the end of the channel is reached, or no data is available, before the null terminator
+     * @since 4.2
+     */
+    public static byte[] readNullTerminatedString(SeekableByteChannel channel) throws IOException {
+        long start = channel.position();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        ByteArrayOutputStream bos = null;
+
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read <= 0) {
+                // no data available (end of the channel, or nothing read by a non-blocking channel)
+                channel.position(start);
+                throw new EOFException("Null terminator not found after position " + start);
+            }
+
+            byte[] data = buffer.array();
+            int end = -1;
+            for (int i = 0; i < read; i++) {
+                if (data[i] == 0) {
+                    end = i + 1;
+                    break;
+                }
+            }
+
+            if (end < 0) {
+                if (bos == null) {
+                    bos = new ByteArrayOutputStream();
+                }
+                bos.write(data, 0, read);
+                continue;
+            }
+
+            long length = (bos != null ? bos.size() : 0) + end;
+            channel.position(start + length);
+
+            if (bos == null) {
+                return Arrays.copyOf(data, end);
+            } else {
+                bos.write(data, 0, end);
+                return bos.toByteArray();
+            }
+        }
+    }
 }
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Message digest forwarding the data to several message digests. This is
+ * used to compute the digests of a file with multiple algorithms while
+ * reading the file only once.
+ *
+ * @since 4.2
+ */
+class CompositeDigest extends MessageDigest {
+
+    private final MessageDigest[] digests;
+
+    /** The digests computed on the last call to digest() */
+    private byte[][] results;
+
+    CompositeDigest(MessageDigest... digests) {
+        super("Composite");
+        this.digests = digests;
+    }
+
+    /**
+     * Returns the digests computed by the last call to {@link #digest()},
+     * in the same order as the message digests of this composite.
+     */
+    byte[][] getDigests() {
+        return results;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        for (MessageDigest digest : digests) {
+            digest.update(input);
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        for (MessageDigest digest : digests) {
+            digest.update(input, offset, len);
+        }
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        for (MessageDigest digest : digests) {
+            digest.update(input.duplicate());
+        }
+        input.position(input.limit());
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        results = new byte[digests.length][];
+        for (int i = 0; i < digests.length; i++) {
+            results[i] = digests[i].digest();
+        }
+        return results.length > 0 ? results[0] : new byte[0];
+    }
+
+    @Override
+    protected void engineReset() {
+        for (MessageDigest digest : digests) {
+            digest.reset();
+        }
+    }
+}
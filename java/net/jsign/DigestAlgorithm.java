@@ -18,6 +18,7 @@ package net.jsign;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.tsp.TSPAlgorithms;
@@ -102,6 +103,21 @@ public enum DigestAlgorithm {
         }
     }
 
+    /**
+     * Return the MessageDigests for the specified algorithms.
+     * 
+     * @param algorithms the digest algorithms
+     * @return the MessageDigests, in the same order as the algorithms
+     * @since 4.2
+     */
+    public static MessageDigest[] getMessageDigests(List<DigestAlgorithm> algorithms) {
+        MessageDigest[] digests = new MessageDigest[algorithms.size()];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = algorithms.get(i).getMessageDigest();
+        }
+        return digests;
+    }
+
     /**
      * Return the default algorithm (currently SHA-256, SHA-1 has been deprecated since January 1st 2016).
      * 
@@ -0,0 +1,288 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Authenticator;
+import java.net.MalformedURLException;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.SSLContext;
+
+/**
+ * HTTP transport shared by the timestampers and the REST clients of the signing
+ * services. The connections are pooled and reused between the requests, and
+ * HTTP/2 is negotiated with the HTTPS servers supporting it (several requests
+ * are then multiplexed over the same connection).
+ *
+ * <p>The proxy configured globally with {@link ProxySelector#setDefault(ProxySelector)}
+ * is honored, even if it's changed after the creation of the transport. If the
+ * proxy authentication is enabled and the proxy requires a basic authentication,
+ * the credentials are requested to the authenticator configured with
+ * {@link Authenticator#setDefault(Authenticator)} and the request is sent again
+ * with the Proxy-Authorization header. The header is then sent preemptively to
+ * this proxy. The authentication isn't delegated to the HTTP client, this would
+ * remove the Authorization header set by the caller. The basic authentication
+ * with the proxy tunneling the HTTPS connections must be allowed with the
+ * <code>jdk.http.auth.tunneling.disabledSchemes</code> system property.</p>
+ *
+ * @since 4.2
+ */
+public class HttpTransport {
+
+    /** The default transport */
+    private static final HttpTransport DEFAULT = new HttpTransport(Duration.ofSeconds(10), null, null, true);
+
+    /** The HTTP client holding the connection pool */
+    private final HttpClient client;
+
+    /** The default timeout of the requests */
+    private final Duration requestTimeout;
+
+    /** Tells if the credentials requested by the proxies are sent */
+    private final boolean proxyAuthentication;
+
+    /** The Proxy-Authorization headers sent preemptively, indexed by proxy address */
+    private final Map<SocketAddress, String> proxyAuthorizations = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the default transport, with a connection timeout of 10 seconds,
+     * no request timeout and the proxy authentication enabled.
+     *
+     * @return the default transport
+     */
+    public static HttpTransport getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a new transport without proxy authentication.
+     *
+     * @param connectTimeout the connection timeout
+     * @param requestTimeout the default timeout of the requests (<code>null</code> for no timeout)
+     */
+    public HttpTransport(Duration connectTimeout, Duration requestTimeout) {
+        this(connectTimeout, requestTimeout, null, false);
+    }
+
+    /**
+     * Creates a new transport with a specific SSL context (for example to
+     * authenticate the client with a certificate).
+     *
+     * @param connectTimeout the connection timeout
+     * @param requestTimeout the default timeout of the requests (<code>null</code> for no timeout)
+     * @param sslContext     the SSL context (<code>null</code> for the default context)
+     * @param proxyAuthentication <code>true</code> to authenticate with the proxy using the default authenticator
+     */
+    public HttpTransport(Duration connectTimeout, Duration requestTimeout, SSLContext sslContext, boolean proxyAuthentication) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(connectTimeout)
+                .proxy(new DefaultProxySelector());
+        if (sslContext != null) {
+            builder.sslContext(sslContext);
+        }
+
+        this.client = builder.build();
+        this.requestTimeout = requestTimeout;
+        this.proxyAuthentication = proxyAuthentication;
+    }
+
+    /**
+     * Creates a request builder for the specified URI. HTTP/2 is only used
+     * with the HTTPS servers, the plain HTTP servers (like most timestamping
+     * authorities) are queried with HTTP/1.1 to avoid the h2c upgrade.
+     *
+     * @param uri the URI of the resource requested
+     * @return the request builder
+     */
+    public HttpRequest.Builder newRequest(URI uri) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        if (!"https".equalsIgnoreCase(uri.getScheme())) {
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+        if (requestTimeout != null) {
+            builder.timeout(requestTimeout);
+        }
+        return builder;
+    }
+
+    /**
+     * Sends the specified request and waits for the response.
+     *
+     * @param request the request
+     * @return the response
+     * @throws IOException if an I/O error occurs or if the request timed out
+     */
+    public HttpResponse<byte[]> send(HttpRequest request) throws IOException {
+        try {
+            HttpResponse<byte[]> response = client.send(authorize(request), HttpResponse.BodyHandlers.ofByteArray());
+            HttpRequest retry = authenticate(request, response);
+            return retry != null ? client.send(retry, HttpResponse.BodyHandlers.ofByteArray()) : response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response of " + request.uri());
+        }
+    }
+
+    /**
+     * Sends the specified request asynchronously.
+     *
+     * @param request the request
+     * @return the future completed with the response
+     */
+    public CompletableFuture<HttpResponse<byte[]>> sendAsync(HttpRequest request) {
+        return client.sendAsync(authorize(request), HttpResponse.BodyHandlers.ofByteArray()).thenCompose(response -> {
+            HttpRequest retry = authenticate(request, response);
+            return retry != null ? client.sendAsync(retry, HttpResponse.BodyHandlers.ofByteArray()) : CompletableFuture.completedFuture(response);
+        });
+    }
+
+    /**
+     * Adds the Proxy-Authorization header to the request if the proxy
+     * selected for the request has already requested an authentication.
+     */
+    private HttpRequest authorize(HttpRequest request) {
+        if (!proxyAuthentication || proxyAuthorizations.isEmpty()) {
+            return request;
+        }
+
+        InetSocketAddress proxy = getProxyAddress(request.uri());
+        String authorization = proxy != null ? proxyAuthorizations.get(proxy) : null;
+        return authorization != null ? withHeader(request, "Proxy-Authorization", authorization) : request;
+    }
+
+    /**
+     * Returns the request to be sent again with the credentials of the proxy if
+     * the specified response requires a proxy authentication, or <code>null</code>
+     * if no authentication is possible.
+     */
+    private HttpRequest authenticate(HttpRequest request, HttpResponse<?> response) {
+        if (!proxyAuthentication || response.statusCode() != 407) {
+            return null;
+        }
+
+        InetSocketAddress proxy = getProxyAddress(request.uri());
+        String challenge = response.headers().firstValue("Proxy-Authenticate").orElse("");
+        if (proxy == null || !challenge.regionMatches(true, 0, "Basic", 0, 5)) {
+            return null;
+        }
+
+        URL url;
+        try {
+            url = request.uri().toURL();
+        } catch (MalformedURLException | IllegalArgumentException e) {
+            return null;
+        }
+
+        PasswordAuthentication credentials = Authenticator.requestPasswordAuthentication(proxy.getHostString(), null, proxy.getPort(),
+                request.uri().getScheme(), getRealm(challenge), "Basic", url, Authenticator.RequestorType.PROXY);
+        if (credentials == null) {
+            return null;
+        }
+
+        String userpass = credentials.getUserName() + ":" + new String(credentials.getPassword());
+        String authorization = "Basic " + Base64.getEncoder().encodeToString(userpass.getBytes(StandardCharsets.UTF_8));
+        if (authorization.equals(response.request().headers().firstValue("Proxy-Authorization").orElse(null))) {
+            // the credentials were rejected
+            proxyAuthorizations.remove(proxy);
+            return null;
+        }
+
+        proxyAuthorizations.put(proxy, authorization);
+        return withHeader(request, "Proxy-Authorization", authorization);
+    }
+
+    /**
+     * Returns the address of the HTTP proxy selected for the specified URI, or <code>null</code> for a direct connection.
+     */
+    private InetSocketAddress getProxyAddress(URI uri) {
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector != null) {
+            for (Proxy proxy : selector.select(uri)) {
+                if (proxy.type() == Proxy.Type.HTTP && proxy.address() instanceof InetSocketAddress) {
+                    return (InetSocketAddress) proxy.address();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String getRealm(String challenge) {
+        int start = challenge.toLowerCase().indexOf("realm=\"");
+        if (start < 0) {
+            return null;
+        }
+        start += "realm=\"".length();
+        int end = challenge.indexOf('"', start);
+        return end > start ? challenge.substring(start, end) : null;
+    }
+
+    /**
+     * Copies the request with an additional header.
+     */
+    private static HttpRequest withHeader(HttpRequest request, String name, String value) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request.uri())
+                .method(request.method(), request.bodyPublisher().orElse(HttpRequest.BodyPublishers.noBody()))
+                .expectContinue(request.expectContinue());
+        request.version().ifPresent(builder::version);
+        request.timeout().ifPresent(builder::timeout);
+        request.headers().map().forEach((header, values) -> {
+            if (!header.equalsIgnoreCase(name)) {
+                values.forEach(v -> builder.header(header, v));
+            }
+        });
+        return builder.header(name, value).build();
+    }
+
+    /**
+     * Proxy selector delegating to the current default selector.
+     */
+    private static class DefaultProxySelector extends ProxySelector {
+        @Override
+        public List<Proxy> select(URI uri) {
+            ProxySelector selector = ProxySelector.getDefault();
+            return selector != null ? selector.select(uri) : Collections.singletonList(Proxy.NO_PROXY);
+        }
+
+        @Override
+        public void connectFailed(URI uri, SocketAddress address, IOException e) {
+            ProxySelector selector = ProxySelector.getDefault();
+            if (selector != null) {
+                selector.connectFailed(uri, address, e);
+            }
+        }
+    }
+}
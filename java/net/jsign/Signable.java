@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.bouncycastle.asn1.ASN1Object;
@@ -50,6 +51,21 @@ public interface Signable {
      */
     byte[] computeDigest(MessageDigest digest) throws IOException;
 
+    /**
+     * Computes the digests of the file with several algorithms in a single
+     * pass over the file.
+     * 
+     * @param digests the message digests to update
+     * @return the digests of the file, in the same order as the message digests
+     * @throws IOException if an I/O error occurs
+     * @since 4.2
+     */
+    default byte[][] computeDigests(MessageDigest... digests) throws IOException {
+        CompositeDigest digest = new CompositeDigest(digests);
+        computeDigest(digest);
+        return digest.getDigests();
+    }
+
     /**
      * Creates the SpcIndirectDataContent structure containing the digest of the file.
      * 
@@ -59,10 +75,30 @@ public interface Signable {
      */
     ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm) throws IOException;
 
+    /**
+     * Creates the SpcIndirectDataContent structures containing the digests of
+     * the file for several algorithms. This is used for creating nested
+     * signatures with different digest algorithms (SHA-1 and SHA-256 for
+     * example). The default implementation reads the file once per algorithm,
+     * the built-in file types read the file only once.
+     * 
+     * @param digestAlgorithms the digest algorithms to use
+     * @return the SpcIndirectDataContent structures in ASN.1 format, in the same order as the algorithms
+     * @throws IOException if an I/O error occurs
+     * @since 4.2
+     */
+    default List<ASN1Object> createIndirectData(List<DigestAlgorithm> digestAlgorithms) throws IOException {
+        List<ASN1Object> indirectData = new ArrayList<>();
+        for (DigestAlgorithm digestAlgorithm : digestAlgorithms) {
+            indirectData.add(createIndirectData(digestAlgorithm));
+        }
+        return indirectData;
+    }
+
     /**
      * Returns the Authenticode signatures on the file.
      * 
-     * @return the signatures
+     * @return the signatures (read-only)
      * @throws IOException if an I/O error occurs
      */
     List<CMSSignedData> getSignatures() throws IOException;
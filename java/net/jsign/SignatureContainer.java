@@ -0,0 +1,139 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.cms.CMSSignedData;
+
+/**
+ * Signatures of a signable file, decoded once and kept until the signatures
+ * of the file are modified. The nested signatures are extracted from the
+ * primary signatures supplied by the file. The container is thread-safe,
+ * the signatures are read without holding the lock of the container, the
+ * reader is thus free to lock the file.
+ *
+ * @since 4.2
+ */
+public class SignatureContainer {
+
+    /**
+     * Reads the primary signatures of a file (without the nested signatures).
+     */
+    public interface Reader {
+        Iterable<SignatureSummary> read() throws IOException;
+    }
+
+    private final Reader reader;
+
+    /** The summaries of the signatures, including the nested signatures (null until read) */
+    private volatile List<SignatureSummary> summaries;
+
+    /** The decoded signatures (null until decoded) */
+    private volatile List<CMSSignedData> signatures;
+
+    /** Incremented when the signatures are reset, to discard the signatures read before */
+    private int version;
+
+    public SignatureContainer(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Returns the summaries of the signatures, each primary signature being
+     * followed by its nested signatures. The signatures are read on the first
+     * call, the next calls return the same list.
+     *
+     * @return the summaries of the signatures (read-only)
+     * @throws IOException if an I/O error occurs
+     */
+    public List<SignatureSummary> getSignatureSummaries() throws IOException {
+        List<SignatureSummary> summaries = this.summaries;
+        if (summaries != null) {
+            return summaries;
+        }
+
+        int version = getVersion();
+        summaries = new ArrayList<>();
+        for (SignatureSummary signature : reader.read()) {
+            summaries.add(signature);
+            try {
+                summaries.addAll(signature.getNestedSignatures());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        summaries = Collections.unmodifiableList(summaries);
+
+        synchronized (this) {
+            if (this.version == version && this.summaries == null) {
+                this.summaries = summaries;
+            }
+            return this.version == version ? this.summaries : summaries;
+        }
+    }
+
+    /**
+     * Returns the signatures, including the nested signatures. The signatures
+     * are decoded on the first call, the next calls return the same list.
+     * The malformed signatures are skipped.
+     *
+     * @return the signatures (read-only)
+     * @throws IOException if an I/O error occurs
+     */
+    public List<CMSSignedData> getSignatures() throws IOException {
+        List<CMSSignedData> signatures = this.signatures;
+        if (signatures != null) {
+            return signatures;
+        }
+
+        int version = getVersion();
+        signatures = new ArrayList<>();
+        for (SignatureSummary summary : getSignatureSummaries()) {
+            try {
+                signatures.add(summary.toCMSSignedData());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        signatures = Collections.unmodifiableList(signatures);
+
+        synchronized (this) {
+            if (this.version == version && this.signatures == null) {
+                this.signatures = signatures;
+            }
+            return this.version == version ? this.signatures : signatures;
+        }
+    }
+
+    /**
+     * Discards the signatures decoded, they'll be read again on the next access.
+     * This method must be called when the signatures of the file are modified.
+     */
+    public synchronized void reset() {
+        version++;
+        summaries = null;
+        signatures = null;
+    }
+
+    private synchronized int getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessable;
+import org.bouncycastle.cms.CMSSignedData;
+
+import net.jsign.asn1.authenticode.AuthenticodeObjectIdentifiers;
+
+/**
+ * Summary of an Authenticode signature. The ASN.1 structure of the signature
+ * is decoded on demand, only the elements required by the properties requested
+ * are parsed, and the {@link CMSSignedData} object is only built if explicitly
+ * requested with {@link #toCMSSignedData()}.
+ *
+ * @since 4.2
+ */
+public class SignatureSummary {
+
+    private final ContentInfo contentInfo;
+
+    /** The first signer of the signature (decoded on demand) */
+    private SignerInfo signerInfo;
+
+    /** The unsigned attributes of the signer (decoded on demand) */
+    private AttributeTable unsignedAttributes;
+
+    public SignatureSummary(ContentInfo contentInfo) {
+        this.contentInfo = contentInfo;
+    }
+
+    /**
+     * Parses the specified PKCS#7 structure. The nested structures are left
+     * encoded until they are accessed.
+     *
+     * @param encoded the DER or BER encoded signature, optionally followed by a padding
+     * @return the signature
+     * @throws IOException if the signature can't be decoded
+     */
+    public static SignatureSummary parse(byte[] encoded) throws IOException {
+        ASN1Primitive object = new ASN1InputStream(encoded, true).readObject();
+        if (object == null) {
+            throw new IOException("Empty signature");
+        }
+        return new SignatureSummary(ContentInfo.getInstance(object));
+    }
+
+    /**
+     * Returns the ASN.1 structure of the signature.
+     */
+    public ContentInfo getContentInfo() {
+        return contentInfo;
+    }
+
+    /**
+     * Returns the digest algorithm of the signature, or <code>null</code> if the algorithm isn't supported.
+     */
+    public DigestAlgorithm getDigestAlgorithm() {
+        return DigestAlgorithm.of(getSignerInfo().getDigestAlgorithm().getAlgorithm());
+    }
+
+    /**
+     * Returns the common name of the signing certificate, or <code>null</code>
+     * if the certificate isn't embedded in the signature or has no common name.
+     */
+    public String getSignerCommonName() {
+        Certificate certificate = getSignerCertificate();
+        if (certificate == null) {
+            return null;
+        }
+
+        RDN[] rdns = certificate.getSubject().getRDNs(X509ObjectIdentifiers.commonName);
+        return rdns.length > 0 ? rdns[0].getFirst().getValue().toString() : null;
+    }
+
+    /**
+     * Tells if the signature is timestamped (with an Authenticode or a RFC 3161 timestamp).
+     */
+    public boolean isTimestamped() {
+        AttributeTable attributes = getUnsignedAttributes();
+        return attributes != null &&
+                   (attributes.get(PKCSObjectIdentifiers.pkcs_9_at_counterSignature) != null
+                 || attributes.get(AuthenticodeObjectIdentifiers.SPC_RFC3161_OBJID) != null);
+    }
+
+    /**
+     * Returns the signatures nested in the unsigned attributes of the signer.
+     */
+    public List<SignatureSummary> getNestedSignatures() {
+        AttributeTable attributes = getUnsignedAttributes();
+        Attribute nestedSignatures = attributes != null ? attributes.get(AuthenticodeObjectIdentifiers.SPC_NESTED_SIGNATURE_OBJID) : null;
+        if (nestedSignatures == null) {
+            return Collections.emptyList();
+        }
+
+        List<SignatureSummary> signatures = new ArrayList<>();
+        for (ASN1Encodable nestedSignature : nestedSignatures.getAttrValues()) {
+            signatures.add(new SignatureSummary(ContentInfo.getInstance(nestedSignature)));
+        }
+        return signatures;
+    }
+
+    /**
+     * Builds the complete signature.
+     *
+     * @throws CMSException if the signature is malformed
+     */
+    public CMSSignedData toCMSSignedData() throws CMSException {
+        return new CMSSignedData((CMSProcessable) null, contentInfo);
+    }
+
+    private SignerInfo getSignerInfo() {
+        if (signerInfo == null) {
+            signerInfo = SignerInfo.getInstance(getSignedData().getSignerInfos().getObjectAt(0));
+        }
+        return signerInfo;
+    }
+
+    private SignedData getSignedData() {
+        return SignedData.getInstance(contentInfo.getContent());
+    }
+
+    private AttributeTable getUnsignedAttributes() {
+        if (unsignedAttributes == null) {
+            ASN1Set attributes = getSignerInfo().getUnauthenticatedAttributes();
+            if (attributes != null) {
+                unsignedAttributes = new AttributeTable(attributes);
+            }
+        }
+        return unsignedAttributes;
+    }
+
+    /**
+     * Looks for the signing certificate among the certificates embedded in the signature.
+     */
+    private Certificate getSignerCertificate() {
+        ASN1Encodable id = getSignerInfo().getSID().getId();
+        ASN1Set certificates = getSignedData().getCertificates();
+        if (id instanceof ASN1Sequence && certificates != null) {
+            IssuerAndSerialNumber issuerAndSerialNumber = IssuerAndSerialNumber.getInstance(id);
+            for (ASN1Encodable element : certificates) {
+                if (element instanceof ASN1Sequence) {
+                    Certificate certificate = Certificate.getInstance(element);
+                    if (certificate.getSerialNumber().equals(issuerAndSerialNumber.getSerialNumber())
+                            && certificate.getIssuer().equals(issuerAndSerialNumber.getName())) {
+                        return certificate;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
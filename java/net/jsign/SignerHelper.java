@@ -41,23 +41,43 @@ import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import com.cedarsoftware.util.io.JsonReader;
 import org.apache.commons.io.FileUtils;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.util.encoders.Hex;
 
 import net.jsign.jca.AzureKeyVaultSigningService;
+import net.jsign.jca.BatchingSigningService;
+import net.jsign.jca.CachingSigningService;
 import net.jsign.jca.DigiCertOneSigningService;
 import net.jsign.jca.ESignerSigningService;
 import net.jsign.jca.GoogleCloudSigningService;
+import net.jsign.jca.PKCS11SigningService;
+import net.jsign.jca.SigningService;
+import net.jsign.jca.SigningServiceCache;
 import net.jsign.jca.SigningServiceJcaProvider;
 import net.jsign.timestamp.TimestampingMode;
 
@@ -68,7 +88,7 @@ import net.jsign.timestamp.TimestampingMode;
  *
  * @since 2.0
  */
-class SignerHelper {
+class SignerHelper implements Closeable {
     public static final String PARAM_KEYSTORE = "keystore";
     public static final String PARAM_STOREPASS = "storepass";
     public static final String PARAM_STORETYPE = "storetype";
@@ -89,6 +109,8 @@ class SignerHelper {
     public static final String PARAM_REPLACE = "replace";
     public static final String PARAM_ENCODING = "encoding";
     public static final String PARAM_DETACHED = "detached";
+    public static final String PARAM_CACHEFILE = "cachefile";
+    public static final String PARAM_SESSIONS = "sessions";
 
     private final Console console;
 
@@ -115,9 +137,20 @@ class SignerHelper {
     private boolean replace;
     private Charset encoding;
     private boolean detached;
+    private File cachefile;
+    private int sessions = 1;
+
+    /** The cache of the signing service used by the signer */
+    private SigningServiceCache signingServiceCache;
+
+    /** The PKCS#11 sessions opened when several sessions are requested (closed with the helper) */
+    private PKCS11SigningService pkcs11Service;
 
     private AuthenticodeSigner signer;
 
+    /** The caches persisted to a file, indexed by file (shared by the helpers using the same file) */
+    private static final Map<File, SigningServiceCache> CACHES = new ConcurrentHashMap<>();
+
     public SignerHelper(Console console, String parameterName) {
         this.console = console;
         this.parameterName = parameterName;
@@ -238,6 +271,21 @@ class SignerHelper {
         return this;
     }
 
+    public SignerHelper cachefile(String cachefile) {
+        cachefile(createFile(cachefile));
+        return this;
+    }
+
+    public SignerHelper cachefile(File cachefile) {
+        this.cachefile = cachefile;
+        return this;
+    }
+
+    public SignerHelper sessions(int sessions) {
+        this.sessions = sessions;
+        return this;
+    }
+
     public SignerHelper param(String key, String value) {
         if (value == null) {
             return this;
@@ -264,6 +312,8 @@ class SignerHelper {
             case PARAM_REPLACE:    return replace("true".equalsIgnoreCase(value));
             case PARAM_ENCODING:   return encoding(value);
             case PARAM_DETACHED:   return detached("true".equalsIgnoreCase(value));
+            case PARAM_CACHEFILE:  return cachefile(value);
+            case PARAM_SESSIONS:   return sessions(Integer.parseInt(value));
             default:
                 throw new IllegalArgumentException("Unknown " + parameterName + ": " + key);
         }
@@ -347,7 +397,16 @@ class SignerHelper {
         Provider provider = null;
         if ("PKCS11".equals(storetype)) {
             // the keystore parameter is either the provider name or the SunPKCS11 configuration file
-            if (keystore != null && new File(keystore).exists()) {
+            if (keystore != null && new File(keystore).exists() && sessions > 1) {
+                // the sessions are opened and logged in upfront by a signing service instead of the SunPKCS11 provider
+                try {
+                    close();
+                    pkcs11Service = PKCS11SigningService.fromSunPKCS11Configuration(keystore, storepass != null ? storepass.toCharArray() : null, sessions);
+                    provider = new SigningServiceJcaProvider(pkcs11Service);
+                } catch (IOException e) {
+                    throw new SignerException("Failed to open the PKCS#11 sessions", e);
+                }
+            } else if (keystore != null && new File(keystore).exists()) {
                 provider = ProviderUtils.createSunPKCS11Provider(keystore);
             } else if (keystore != null && keystore.startsWith("SunPKCS11-")) {
                 provider = Security.getProvider(keystore);
@@ -360,23 +419,29 @@ class SignerHelper {
         } else if ("YUBIKEY".equals(storetype)) {
             provider = YubiKey.getProvider();
         } else if ("AZUREKEYVAULT".equals(storetype)) {
-            provider = new SigningServiceJcaProvider(new AzureKeyVaultSigningService(keystore, storepass));
+            // the access token is renewed regularly, the scope includes the identity it was issued to
+            String scope = keystore + ":" + getAzureIdentity(storepass);
+            provider = new SigningServiceJcaProvider(cache(new AzureKeyVaultSigningService(keystore, storepass), scope));
         } else if ("DIGICERTONE".equals(storetype)) {
             String[] elements = storepass.split("\\|");
-            provider = new SigningServiceJcaProvider(new DigiCertOneSigningService(elements[0], new File(elements[1]), elements[2]));
+            // the account is identified by a fingerprint of the API key, the key itself mustn't be written in the cache
+            String scope = fingerprint(elements[0]) + ":" + new File(elements[1]).getAbsolutePath();
+            provider = new SigningServiceJcaProvider(cache(new DigiCertOneSigningService(elements[0], new File(elements[1]), elements[2]), scope));
         } else if ("GOOGLECLOUD".equals(storetype)) {
-            provider = new SigningServiceJcaProvider(new GoogleCloudSigningService(keystore, storepass, alias -> {
+            // the certificate chain is loaded from a local file, its modification date is part of the scope to detect the changes
+            String scope = keystore + (certfile != null ? ":" + certfile.getAbsolutePath() + ":" + certfile.lastModified() : "");
+            provider = new SigningServiceJcaProvider(cache(new GoogleCloudSigningService(keystore, storepass, alias -> {
                 try {
                     return loadCertificateChain(certfile);
                 } catch (IOException | CertificateException e) {
                     throw new RuntimeException("Failed to load the certificate from " + certfile, e);
                 }
-            }));
+            }), scope));
         } else if ("ESIGNER".equals(storetype)) {
             String[] elements = storepass.split("\\|", 2);
             String endpoint = keystore != null ? keystore : "https://cs.ssl.com";
             try {
-                provider = new SigningServiceJcaProvider(new ESignerSigningService(endpoint, elements[0], elements[1]));
+                provider = new SigningServiceJcaProvider(cache(new ESignerSigningService(endpoint, elements[0], elements[1]), endpoint + ":" + elements[0]));
             } catch (IOException e) {
                 throw new SignerException("Authentication failed with SSL.com", e);
             }
@@ -455,8 +520,8 @@ class SignerHelper {
             }
 
             char[] password = keypass != null ? keypass.toCharArray() : null;
-            if (password == null && storepass != null && !"ESIGNER".equals(storetype)) {
-                // use the storepass as the keypass
+            if (password == null && storepass != null && !(provider instanceof SigningServiceJcaProvider)) {
+                // use the storepass as the keypass (the signing services don't use it, it holds their credentials)
                 password = storepass.toCharArray();
             }
 
@@ -466,6 +531,17 @@ class SignerHelper {
                 throw new SignerException("Failed to retrieve the private key from the keystore", e);
             }
 
+            // write the entries retrieved from the signing service to the cache file at once
+            if (signingServiceCache != null) {
+                try {
+                    signingServiceCache.flush();
+                } catch (IOException e) {
+                    if (console != null) {
+                        console.warn("Unable to write the signing service cache " + cachefile + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+
         } else {
             // separate private key and certificate files (PVK/SPC)
             if (keyfile == null) {
@@ -496,8 +572,14 @@ class SignerHelper {
             }
         }
 
-        if (alg != null && DigestAlgorithm.of(alg) == null) {
-            throw new SignerException("The digest algorithm " + alg + " is not supported");
+        // the primary algorithm may be followed by the algorithms of the nested signatures (e.g. SHA-1,SHA-256)
+        String[] algs = alg != null ? alg.split(",") : new String[0];
+        DigestAlgorithm[] digestAlgorithms = new DigestAlgorithm[algs.length];
+        for (int i = 0; i < algs.length; i++) {
+            digestAlgorithms[i] = DigestAlgorithm.of(algs[i].trim());
+            if (digestAlgorithms[i] == null) {
+                throw new SignerException("The digest algorithm " + algs[i].trim() + " is not supported");
+            }
         }
 
         try {
@@ -510,7 +592,8 @@ class SignerHelper {
         return new AuthenticodeSigner(chain, privateKey)
                 .withProgramName(name)
                 .withProgramURL(url)
-                .withDigestAlgorithm(DigestAlgorithm.of(alg))
+                .withDigestAlgorithm(digestAlgorithms.length > 0 ? digestAlgorithms[0] : null)
+                .withNestedDigestAlgorithms(digestAlgorithms.length > 1 ? Arrays.copyOfRange(digestAlgorithms, 1, digestAlgorithms.length) : new DigestAlgorithm[0])
                 .withSignatureProvider(provider)
                 .withSignaturesReplaced(replace)
                 .withTimestamping(tsaurl != null || tsmode != null)
@@ -521,21 +604,7 @@ class SignerHelper {
     }
 
     public void sign(File file) throws SignerException {
-        if (file == null) {
-            throw new SignerException("file must be set");
-        }
-        if (!file.exists()) {
-            throw new SignerException("The file " + file + " couldn't be found");
-        }
-        
-        Signable signable;
-        try {
-            signable = Signable.of(file, encoding);
-        } catch (UnsupportedOperationException e) {
-            throw new SignerException(e.getMessage());
-        } catch (IOException e) {
-            throw new SignerException("Couldn't open the file " + file, e);
-        }
+        Signable signable = open(file);
 
         if (detached && getDetachedSignature(file).exists()) {
             try {
@@ -577,6 +646,187 @@ class SignerHelper {
         }
     }
 
+    /**
+     * Sign the specified files concurrently. The files are digested and signed by
+     * a pool of threads sharing the same signer, and the timestamping and the saving
+     * of the files are pipelined: a thread proceeds with the next file while the
+     * timestamping authority processes the request of the previous file. A failure
+     * doesn't interrupt the signing of the other files, the files that couldn't be
+     * signed are reported at the end.
+     *
+     * @param files   the files to sign
+     * @param threads the number of files digested and signed concurrently
+     * @throws SignerException if one or more files couldn't be signed (the errors are attached as suppressed exceptions)
+     * @since 4.2
+     */
+    public void sign(List<File> files, int threads) throws SignerException {
+        if (signer == null) {
+            signer = build();
+        }
+
+        int poolSize = Math.max(1, Math.min(threads, files.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        ExecutorService timestampingExecutor = Executors.newFixedThreadPool(poolSize);
+
+        // limits the number of files kept open while waiting for the timestamps
+        Semaphore openFiles = new Semaphore(2 * poolSize);
+        try {
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+            for (File file : files) {
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return signAsync(file, timestampingExecutor, openFiles);
+                    } catch (SignerException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor).thenCompose(result -> result));
+            }
+
+            // collect the results in the order of the files
+            List<SignerException> failures = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    SignerException failure = cause instanceof SignerException ? (SignerException) cause : new SignerException("Couldn't sign " + files.get(i), cause);
+                    if (console != null) {
+                        console.warn(failure.getMessage(), failure.getCause());
+                    }
+                    failures.add(failure);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SignerException("Interrupted while signing the files", e);
+                }
+            }
+
+            if (!failures.isEmpty()) {
+                SignerException exception = new SignerException(failures.size() + " of " + files.size() + " files couldn't be signed");
+                failures.forEach(exception::addSuppressed);
+                throw exception;
+            }
+        } finally {
+            executor.shutdownNow();
+            timestampingExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Digests and signs the specified file, and returns the future completed
+     * once the file is timestamped and saved. The detached signatures are
+     * attached and extracted synchronously.
+     */
+    private CompletableFuture<Void> signAsync(File file, Executor executor, Semaphore openFiles) throws SignerException {
+        if (detached) {
+            sign(file);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        try {
+            openFiles.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SignerException("Interrupted while signing " + file, e);
+        }
+
+        Signable signable;
+        try {
+            signable = open(file);
+        } catch (SignerException e) {
+            openFiles.release();
+            throw e;
+        }
+
+        if (console != null) {
+            console.info("Adding Authenticode signature to " + file);
+        }
+
+        return signer.sign(signable, executor).whenComplete((result, error) -> {
+            if (error != null && signable instanceof Closeable) {
+                try {
+                    ((Closeable) signable).close();
+                } catch (IOException ioe) {
+                    // Ignore for now
+                }
+            }
+            openFiles.release();
+        });
+    }
+
+    private Signable open(File file) throws SignerException {
+        if (file == null) {
+            throw new SignerException("file must be set");
+        }
+        if (!file.exists()) {
+            throw new SignerException("The file " + file + " couldn't be found");
+        }
+
+        try {
+            return Signable.of(file, encoding);
+        } catch (UnsupportedOperationException e) {
+            throw new SignerException(e.getMessage());
+        } catch (IOException e) {
+            throw new SignerException("Couldn't open the file " + file, e);
+        }
+    }
+
+    /**
+     * Releases the resources held by the signer (the PKCS#11 sessions).
+     * The signer is created again if other files are signed afterward.
+     */
+    @Override
+    public void close() {
+        if (pkcs11Service != null) {
+            pkcs11Service.close();
+            pkcs11Service = null;
+            signer = null;
+        }
+    }
+
+    /**
+     * Wraps the signing service to cache the certificates and the keys retrieved,
+     * and to group the signatures requested concurrently when several files are
+     * signed in parallel.
+     *
+     * @param service the signing service
+     * @param scope   the identifier of the resources of the service (without secret)
+     */
+    private SigningService cache(SigningService service, String scope) {
+        SigningServiceCache cache = cachefile != null
+                ? CACHES.computeIfAbsent(cachefile.getAbsoluteFile(), file -> new SigningServiceCache(Duration.ofHours(1), file))
+                : SigningServiceCache.getDefault();
+        signingServiceCache = cache;
+        return new BatchingSigningService(new CachingSigningService(service, scope, cache));
+    }
+
+    /**
+     * Returns a fingerprint of the specified secret, identifying it in the cache without disclosing it.
+     */
+    private static String fingerprint(String secret) {
+        byte[] digest = DigestAlgorithm.SHA256.getMessageDigest().digest(secret.getBytes(StandardCharsets.UTF_8));
+        return Hex.toHexString(digest, 0, 16);
+    }
+
+    /**
+     * Returns a fingerprint of the identity an Azure access token was issued to
+     * (the tenant and the object id of the principal), or a fingerprint of the
+     * token itself if it can't be decoded.
+     */
+    private static String getAzureIdentity(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length == 3) {
+            try {
+                Map<?, ?> claims = JsonReader.jsonToMaps(new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8));
+                if (claims.get("tid") != null && claims.get("oid") != null) {
+                    return fingerprint(claims.get("tid") + ":" + claims.get("oid"));
+                }
+            } catch (RuntimeException e) {
+                // not a JWT
+            }
+        }
+        return fingerprint(token);
+    }
+
     private void attach(File file) throws IOException, CMSException {
         File detachedSignature = getDetachedSignature(file);
         byte[] signatureBytes = FileUtils.readFileToByteArray(detachedSignature);
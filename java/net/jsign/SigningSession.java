@@ -0,0 +1,216 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign;
+
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cms.CMSAttributeTableGenerator;
+import org.bouncycastle.cms.CMSSignatureEncryptionAlgorithmFinder;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.DefaultCMSSignatureEncryptionAlgorithmFinder;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.bouncycastle.cms.SignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.SignerInformationVerifier;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.util.Store;
+
+import net.jsign.asn1.authenticode.AuthenticodeDigestCalculatorProvider;
+import net.jsign.asn1.authenticode.AuthenticodeObjectIdentifiers;
+import net.jsign.asn1.authenticode.AuthenticodeSignedDataGenerator;
+import net.jsign.asn1.authenticode.FilteredAttributeTableGenerator;
+import net.jsign.asn1.authenticode.SpcSpOpusInfo;
+import net.jsign.asn1.authenticode.SpcStatementType;
+
+/**
+ * State of the CMS generator computed once for a signer and a signature algorithm
+ * (the signing certificate, the certificates embedded, the authenticated attributes,
+ * the signature verifier), and reused for all the files signed. The session is
+ * thread-safe, the content signers (which aren't) are kept per thread.
+ *
+ * @since 4.2
+ */
+class SigningSession {
+
+    /** Enforce "RSA" instead of "shaXXXRSA" for digest signature to be more like signtool */
+    private static final CMSSignatureEncryptionAlgorithmFinder ENCRYPTION_ALGORITHM_FINDER = new DefaultCMSSignatureEncryptionAlgorithmFinder() {
+        @Override
+        public AlgorithmIdentifier findEncryptionAlgorithm(final AlgorithmIdentifier signatureAlgorithm) {
+            if (signatureAlgorithm.getAlgorithm().equals(PKCSObjectIdentifiers.sha256WithRSAEncryption) ||
+                signatureAlgorithm.getAlgorithm().equals(PKCSObjectIdentifiers.sha384WithRSAEncryption) ||
+                signatureAlgorithm.getAlgorithm().equals(PKCSObjectIdentifiers.sha512WithRSAEncryption)) {
+                return new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption, DERNull.INSTANCE);
+            } else {
+                return super.findEncryptionAlgorithm(signatureAlgorithm);
+            }
+        }
+    };
+
+    private final Certificate[] chain;
+    private final PrivateKey privateKey;
+    private final String signatureAlgorithm;
+    private final Provider signatureProvider;
+    private final String programName;
+    private final String programURL;
+
+    private final JcaContentSignerBuilder contentSignerBuilder;
+    private final DigestCalculatorProvider digestCalculatorProvider = new AuthenticodeDigestCalculatorProvider();
+    private final CMSAttributeTableGenerator attributeTableGenerator;
+    private final X509CertificateHolder certificate;
+    private final Store<X509CertificateHolder> certificates;
+    private final SignerInformationVerifier verifier;
+
+    /** The content signers available, a content signer can only compute one signature at a time */
+    private final ThreadLocal<ContentSigner> contentSigners = new ThreadLocal<>();
+
+    /**
+     * @param chain              the certificate chain, the first certificate is the signing certificate
+     * @param privateKey         the private key
+     * @param signatureAlgorithm the signature algorithm (for example SHA256withRSA)
+     * @param signatureProvider  the security provider for the signature algorithm (may be null)
+     * @param programName        the program name embedded in the signature (may be null)
+     * @param programURL         the program URL embedded in the signature (may be null)
+     */
+    SigningSession(Certificate[] chain, PrivateKey privateKey, String signatureAlgorithm, Provider signatureProvider, String programName, String programURL) throws CertificateEncodingException, OperatorCreationException {
+        this.chain = chain;
+        this.privateKey = privateKey;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.signatureProvider = signatureProvider;
+        this.programName = programName;
+        this.programURL = programURL;
+
+        this.contentSignerBuilder = new JcaContentSignerBuilder(signatureAlgorithm);
+        if (signatureProvider != null) {
+            contentSignerBuilder.setProvider(signatureProvider);
+        }
+
+        CMSAttributeTableGenerator attributeTableGenerator = new DefaultSignedAttributeTableGenerator(createAuthenticatedAttributes());
+        this.attributeTableGenerator = new FilteredAttributeTableGenerator(attributeTableGenerator, CMSAttributes.signingTime, CMSAttributes.cmsAlgorithmProtect);
+
+        this.certificate = new JcaX509CertificateHolder((X509Certificate) chain[0]);
+        this.certificates = new JcaCertStore(removeRoot(chain));
+        this.verifier = new JcaSignerInfoVerifierBuilder(digestCalculatorProvider).build(chain[0].getPublicKey());
+    }
+
+    /**
+     * Tells if the session was created with the specified parameters.
+     */
+    boolean isValidFor(Certificate[] chain, PrivateKey privateKey, String signatureAlgorithm, Provider signatureProvider, String programName, String programURL) {
+        return this.chain == chain
+                && this.privateKey == privateKey
+                && this.signatureAlgorithm.equals(signatureAlgorithm)
+                && this.signatureProvider == signatureProvider
+                && Objects.equals(this.programName, programName)
+                && Objects.equals(this.programURL, programURL);
+    }
+
+    /**
+     * Creates and verifies the PKCS7 message with the signature of the indirect data.
+     *
+     * @param indirectData the SpcIndirectDataContent structure containing the digest of the file
+     * @return the PKCS7 message with the signature
+     */
+    CMSSignedData sign(ASN1Object indirectData) throws Exception {
+        // the content signer is taken for the duration of the signature, and put back only if it succeeded
+        ContentSigner contentSigner = contentSigners.get();
+        contentSigners.remove();
+        if (contentSigner == null) {
+            contentSigner = contentSignerBuilder.build(privateKey);
+        }
+
+        SignerInfoGeneratorBuilder signerInfoGeneratorBuilder = new SignerInfoGeneratorBuilder(digestCalculatorProvider, ENCRYPTION_ALGORITHM_FINDER);
+        signerInfoGeneratorBuilder.setSignedAttributeGenerator(attributeTableGenerator);
+
+        AuthenticodeSignedDataGenerator generator = new AuthenticodeSignedDataGenerator();
+        generator.addCertificates(certificates);
+        generator.addSignerInfoGenerator(signerInfoGeneratorBuilder.build(contentSigner, certificate));
+
+        CMSSignedData sigData = generator.generate(AuthenticodeObjectIdentifiers.SPC_INDIRECT_DATA_OBJID, indirectData);
+
+        // verify the signature
+        sigData.getSignerInfos().iterator().next().verify(verifier);
+
+        contentSigners.set(contentSigner);
+
+        return sigData;
+    }
+
+    /**
+     * Remove the root certificate from the chain, unless the chain consists in a single self signed certificate.
+     * 
+     * @param certificates the certificate chain to process
+     * @return the certificate chain without the root certificate
+     */
+    private List<Certificate> removeRoot(Certificate[] certificates) {
+        List<Certificate> list = new ArrayList<>();
+        
+        if (certificates.length == 1) {
+            list.add(certificates[0]);
+        } else {
+            for (Certificate certificate : certificates) {
+                if (!isSelfSigned((X509Certificate) certificate)) {
+                    list.add(certificate);
+                }
+            }
+        }
+        
+        return list;
+    }
+
+    private boolean isSelfSigned(X509Certificate certificate) {
+        return certificate.getSubjectDN().equals(certificate.getIssuerDN());
+    }
+
+    /**
+     * Creates the authenticated attributes for the SignerInfo section of the signature.
+     * 
+     * @return the authenticated attributes
+     */
+    private AttributeTable createAuthenticatedAttributes() {
+        List<Attribute> attributes = new ArrayList<>();
+        
+        SpcStatementType spcStatementType = new SpcStatementType(AuthenticodeObjectIdentifiers.SPC_INDIVIDUAL_SP_KEY_PURPOSE_OBJID);
+        attributes.add(new Attribute(AuthenticodeObjectIdentifiers.SPC_STATEMENT_TYPE_OBJID, new DERSet(spcStatementType)));
+        
+        SpcSpOpusInfo spcSpOpusInfo = new SpcSpOpusInfo(programName, programURL);
+        attributes.add(new Attribute(AuthenticodeObjectIdentifiers.SPC_SP_OPUS_INFO_OBJID, new DERSet(spcSpOpusInfo)));
+
+        return new AttributeTable(new DERSet(attributes.toArray(new ASN1Encodable[0])));
+    }
+}
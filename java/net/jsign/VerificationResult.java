@@ -0,0 +1,88 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of the verification of the signatures of a file.
+ *
+ * @see AuthenticodeVerifier
+ * @since 4.2
+ */
+public class VerificationResult {
+
+    /** The name of the file verified */
+    private final String name;
+
+    /** The number of signatures verified (including the nested signatures) */
+    private int signatureCount;
+
+    /** The problems found */
+    private final List<String> errors = new ArrayList<>();
+
+    VerificationResult(String name) {
+        this.name = name;
+    }
+
+    void setSignatureCount(int signatureCount) {
+        this.signatureCount = signatureCount;
+    }
+
+    void addError(String error) {
+        errors.add(error);
+    }
+
+    /**
+     * Returns the name of the file verified.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of signatures verified, including the nested signatures.
+     */
+    public int getSignatureCount() {
+        return signatureCount;
+    }
+
+    /**
+     * Returns the problems found, or an empty list if the file is properly signed.
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Tells if the file is signed and if all its signatures are valid.
+     */
+    public boolean isValid() {
+        return signatureCount > 0 && errors.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        if (isValid()) {
+            return name + ": " + signatureCount + " valid signature" + (signatureCount > 1 ? "s" : "");
+        } else {
+            return name + ": " + String.join(", ", errors);
+        }
+    }
+}
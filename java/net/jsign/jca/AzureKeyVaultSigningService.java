@@ -28,6 +28,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -77,7 +78,7 @@ public class AzureKeyVaultSigningService implements SigningService {
         if (!vault.startsWith("http")) {
             vault = "https://" + vault + ".vault.azure.net";
         }
-        this.client = new RESTClient(vault, conn -> conn.setRequestProperty("Authorization", "Bearer " + token));
+        this.client = new RESTClient(vault, request -> request.header("Authorization", "Bearer " + token));
     }
 
     @Override
@@ -147,25 +148,39 @@ public class AzureKeyVaultSigningService implements SigningService {
 
     @Override
     public byte[] sign(SigningServicePrivateKey privateKey, String algorithm, byte[] data) throws GeneralSecurityException {
+        return signBatch(privateKey, algorithm, Collections.singletonList(data)).get(0);
+    }
+
+    /**
+     * Sign the data concurrently, Key Vault signs only one digest per request.
+     */
+    @Override
+    public List<byte[]> signBatch(SigningServicePrivateKey privateKey, String algorithm, List<byte[]> data) throws GeneralSecurityException {
         String alg = algorithmMapping.get(algorithm);
         if (alg == null) {
             throw new InvalidAlgorithmParameterException("Unsupported signing algorithm: " + algorithm);
         }
 
         MessageDigest digest = DigestAlgorithm.of(algorithm.substring(0, algorithm.toLowerCase().indexOf("with"))).getMessageDigest();
-        data = digest.digest(data);
 
-        Map<String, String> request = new HashMap<>();
-        request.put("alg", alg);
-        request.put("value", Base64.getEncoder().encodeToString(data));
+        Map<String, Object> args = new HashMap<>();
+        args.put(JsonWriter.TYPE, "false");
 
-        try {
-            Map<String, Object> args = new HashMap<>();
-            args.put(JsonWriter.TYPE, "false");
-            Map<String, ?> response = client.post(privateKey.getId() + "/sign?api-version=7.2", JsonWriter.objectToJson(request, args));
-            String value = (String) response.get("value");
+        List<String> requests = new ArrayList<>(data.size());
+        for (byte[] d : data) {
+            Map<String, String> request = new HashMap<>();
+            request.put("alg", alg);
+            request.put("value", Base64.getEncoder().encodeToString(digest.digest(d)));
+            requests.add(JsonWriter.objectToJson(request, args));
+        }
 
-            return Base64.getUrlDecoder().decode(value);
+        try {
+            List<byte[]> signatures = new ArrayList<>(data.size());
+            for (Map<String, ?> response : client.post(privateKey.getId() + "/sign?api-version=7.2", requests)) {
+                String value = (String) response.get("value");
+                signatures.add(Base64.getUrlDecoder().decode(value));
+            }
+            return signatures;
         } catch (IOException e) {
             throw new GeneralSecurityException(e);
         }
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign.jca;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Signing service grouping the signatures requested concurrently by several
+ * threads into a single {@link SigningService#signBatch} call. The first thread
+ * requesting a signature sends it immediately, the signatures requested by the
+ * other threads in the meantime are queued and sent together by one of the
+ * waiting threads once the previous batch is complete. No delay is added when
+ * a single thread is signing.
+ *
+ * @since 4.2
+ */
+public class BatchingSigningService implements SigningService {
+
+    /** The signing service receiving the batches */
+    private final SigningService service;
+
+    /** The signatures waiting to be sent */
+    private final List<Request> queue = new ArrayList<>();
+
+    /** Tells if a batch is being sent */
+    private boolean sending;
+
+    /**
+     * A signature requested by a thread.
+     */
+    private static class Request {
+        private final SigningServicePrivateKey privateKey;
+        private final String algorithm;
+        private final byte[] data;
+        private byte[] signature;
+        private Exception error;
+        private boolean done;
+
+        Request(SigningServicePrivateKey privateKey, String algorithm, byte[] data) {
+            this.privateKey = privateKey;
+            this.algorithm = algorithm;
+            this.data = data;
+        }
+    }
+
+    public BatchingSigningService(SigningService service) {
+        this.service = service;
+    }
+
+    @Override
+    public String getName() {
+        return service.getName();
+    }
+
+    @Override
+    public List<String> aliases() throws KeyStoreException {
+        return service.aliases();
+    }
+
+    @Override
+    public Certificate[] getCertificateChain(String alias) throws KeyStoreException {
+        return service.getCertificateChain(alias);
+    }
+
+    @Override
+    public SigningServicePrivateKey getPrivateKey(String alias, char[] password) throws UnrecoverableKeyException {
+        return service.getPrivateKey(alias, password);
+    }
+
+    @Override
+    public byte[] sign(SigningServicePrivateKey privateKey, String algorithm, byte[] data) throws GeneralSecurityException {
+        Request request = new Request(privateKey, algorithm, data);
+        synchronized (this) {
+            queue.add(request);
+        }
+
+        while (true) {
+            List<Request> batch;
+            synchronized (this) {
+                while (!request.done && sending) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // withdraw the request unless it's already part of the batch being sent
+                        queue.remove(request);
+                        Thread.currentThread().interrupt();
+                        throw new GeneralSecurityException("Interrupted while waiting for the signature", e);
+                    }
+                }
+                if (request.done) {
+                    break;
+                }
+
+                // the previous batch is complete, send the signatures queued in the meantime
+                batch = new ArrayList<>(queue);
+                queue.clear();
+                sending = true;
+            }
+
+            try {
+                send(batch);
+            } finally {
+                synchronized (this) {
+                    for (Request r : batch) {
+                        if (!r.done) {
+                            r.error = new GeneralSecurityException("The signing service failed unexpectedly");
+                            r.done = true;
+                        }
+                    }
+                    sending = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        if (request.error instanceof GeneralSecurityException) {
+            throw (GeneralSecurityException) request.error;
+        } else if (request.error instanceof RuntimeException) {
+            throw (RuntimeException) request.error;
+        }
+        return request.signature;
+    }
+
+    @Override
+    public List<byte[]> signBatch(SigningServicePrivateKey privateKey, String algorithm, List<byte[]> data) throws GeneralSecurityException {
+        return service.signBatch(privateKey, algorithm, data);
+    }
+
+    /**
+     * Signs the requests, grouped by key and algorithm.
+     */
+    private void send(List<Request> batch) {
+        Map<List<Object>, List<Request>> groups = new LinkedHashMap<>();
+        for (Request request : batch) {
+            groups.computeIfAbsent(Arrays.asList(request.privateKey, request.algorithm), key -> new ArrayList<>()).add(request);
+        }
+
+        for (List<Request> group : groups.values()) {
+            List<byte[]> data = new ArrayList<>(group.size());
+            for (Request request : group) {
+                data.add(request.data);
+            }
+
+            List<byte[]> signatures = null;
+            Exception error = null;
+            try {
+                signatures = service.signBatch(group.get(0).privateKey, group.get(0).algorithm, data);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < group.size(); i++) {
+                    Request request = group.get(i);
+                    if (error == null) {
+                        request.signature = signatures.get(i);
+                    } else {
+                        // each thread gets its own exception if the batch is shared
+                        request.error = group.size() == 1 ? error : new GeneralSecurityException(error.getMessage(), error);
+                    }
+                    request.done = true;
+                }
+            }
+        }
+    }
+}
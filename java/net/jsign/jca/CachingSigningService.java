@@ -0,0 +1,91 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign.jca;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Signing service caching the aliases, the certificate chains and the private
+ * key descriptors of another signing service. The private keys requested with
+ * a password are never cached.
+ *
+ * @since 4.2
+ */
+public class CachingSigningService implements SigningService {
+
+    /** The signing service queried on cache misses */
+    private final SigningService service;
+
+    /** The prefix of the cache keys identifying the service instance (for example the name of the vault) */
+    private final String scope;
+
+    private final SigningServiceCache cache;
+
+    /**
+     * Creates a caching signing service.
+     *
+     * @param service the signing service
+     * @param scope   the identifier of the resources of the service (for example the name of the vault or the keyring),
+     *                it must not contain any secret since it's used in the cache file
+     * @param cache   the cache
+     */
+    public CachingSigningService(SigningService service, String scope, SigningServiceCache cache) {
+        this.service = service;
+        this.scope = service.getName() + ":" + scope;
+        this.cache = cache;
+    }
+
+    @Override
+    public String getName() {
+        return service.getName();
+    }
+
+    @Override
+    public List<String> aliases() throws KeyStoreException {
+        List<String> aliases = cache.get(scope + ":aliases", service::aliases);
+        return aliases != null ? new ArrayList<>(aliases) : null;
+    }
+
+    @Override
+    public Certificate[] getCertificateChain(String alias) throws KeyStoreException {
+        Certificate[] chain = cache.get(scope + ":chain:" + alias, () -> service.getCertificateChain(alias));
+        return chain != null ? chain.clone() : null;
+    }
+
+    @Override
+    public SigningServicePrivateKey getPrivateKey(String alias, char[] password) throws UnrecoverableKeyException {
+        if (password != null) {
+            return service.getPrivateKey(alias, password);
+        }
+        return cache.get(scope + ":key:" + alias, () -> service.getPrivateKey(alias, null));
+    }
+
+    @Override
+    public byte[] sign(SigningServicePrivateKey privateKey, String algorithm, byte[] data) throws GeneralSecurityException {
+        return service.sign(privateKey, algorithm, data);
+    }
+
+    @Override
+    public List<byte[]> signBatch(SigningServicePrivateKey privateKey, String algorithm, List<byte[]> data) throws GeneralSecurityException {
+        return service.signBatch(privateKey, algorithm, data);
+    }
+}
@@ -22,18 +22,20 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -42,6 +44,7 @@ import javax.net.ssl.X509KeyManager;
 import com.cedarsoftware.util.io.JsonWriter;
 
 import net.jsign.DigestAlgorithm;
+import net.jsign.HttpTransport;
 import net.jsign.KeyStoreUtils;
 
 /**
@@ -78,16 +81,16 @@ public class DigiCertOneSigningService implements SigningService {
      * @param keyManager the key manager to authenticate the client with the server
      */
     public DigiCertOneSigningService(String apiKey, X509KeyManager keyManager) {
-        this.client = new RESTClient("https://one.digicert.com/signingmanager/api/v1/", conn -> {
-            conn.setRequestProperty("x-api-key", apiKey);
-            try {
-                SSLContext context = SSLContext.getInstance("TLS");
-                context.init(new KeyManager[]{keyManager}, null, new SecureRandom());
-                ((HttpsURLConnection) conn).setSSLSocketFactory(context.getSocketFactory());
-            } catch (GeneralSecurityException e) {
-                throw new RuntimeException("Unable to load the DigiCert ONE client certificate", e);
-            }
-        });
+        SSLContext context;
+        try {
+            context = SSLContext.getInstance("TLS");
+            context.init(new KeyManager[]{keyManager}, null, new SecureRandom());
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Unable to load the DigiCert ONE client certificate", e);
+        }
+
+        HttpTransport transport = new HttpTransport(Duration.ofSeconds(10), null, context, true);
+        this.client = new RESTClient("https://one.digicert.com/signingmanager/api/v1/", transport, request -> request.header("x-api-key", apiKey));
     }
 
     @Override
@@ -184,21 +187,36 @@ public class DigiCertOneSigningService implements SigningService {
 
     @Override
     public byte[] sign(SigningServicePrivateKey privateKey, String algorithm, byte[] data) throws GeneralSecurityException {
-        DigestAlgorithm digestAlgorithm = DigestAlgorithm.of(algorithm.substring(0, algorithm.toLowerCase().indexOf("with")));
-        data = digestAlgorithm.getMessageDigest().digest(data);
+        return signBatch(privateKey, algorithm, Collections.singletonList(data)).get(0);
+    }
 
-        Map<String, Object> request = new HashMap<>();
-        request.put("account", privateKey.getProperties().get("account"));
-        request.put("sig_alg", algorithm);
-        request.put("hash", Base64.getEncoder().encodeToString(data));
+    /**
+     * Sign the data concurrently, DigiCert ONE signs only one hash per request.
+     */
+    @Override
+    public List<byte[]> signBatch(SigningServicePrivateKey privateKey, String algorithm, List<byte[]> data) throws GeneralSecurityException {
+        DigestAlgorithm digestAlgorithm = DigestAlgorithm.of(algorithm.substring(0, algorithm.toLowerCase().indexOf("with")));
+        MessageDigest digest = digestAlgorithm.getMessageDigest();
+
+        Map<String, Object> args = new HashMap<>();
+        args.put(JsonWriter.TYPE, "false");
+
+        List<String> requests = new ArrayList<>(data.size());
+        for (byte[] d : data) {
+            Map<String, Object> request = new HashMap<>();
+            request.put("account", privateKey.getProperties().get("account"));
+            request.put("sig_alg", algorithm);
+            request.put("hash", Base64.getEncoder().encodeToString(digest.digest(d)));
+            requests.add(JsonWriter.objectToJson(request, args));
+        }
 
         try {
-            Map<String, Object> args = new HashMap<>();
-            args.put(JsonWriter.TYPE, "false");
-            Map<String, ?> response = client.post("https://clientauth.one.digicert.com/signingmanager/api/v1/keypairs/" + privateKey.getId() + "/sign", JsonWriter.objectToJson(request, args));
-            String value = (String) response.get("signature");
-
-            return Base64.getDecoder().decode(value);
+            List<byte[]> signatures = new ArrayList<>(data.size());
+            for (Map<String, ?> response : client.post("https://clientauth.one.digicert.com/signingmanager/api/v1/keypairs/" + privateKey.getId() + "/sign", requests)) {
+                String value = (String) response.get("signature");
+                signatures.add(Base64.getDecoder().decode(value));
+            }
+            return signatures;
         } catch (IOException e) {
             throw new GeneralSecurityException(e);
         }
@@ -28,6 +28,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -57,6 +58,9 @@ public class ESignerSigningService implements SigningService {
 
     private final RESTClient client;
 
+    /** The maximum number of hashes signed with a single request */
+    private static final int MAX_HASHES_PER_REQUEST = 100;
+
     public ESignerSigningService(String endpoint, String username, String password) throws IOException {
         this(endpoint, getAccessToken(endpoint.contains("-try.ssl.com") ? "https://oauth-sandbox.ssl.com" : "https://login.ssl.com",
                 endpoint.contains("-try.ssl.com") ? "qOUeZCCzSqgA93acB3LYq6lBNjgZdiOxQc-KayC3UMw" : "kaXTRACNijSWsFdRKg_KAfD3fqrBlzMbWs6TwWHwAn8",
@@ -64,7 +68,7 @@ public class ESignerSigningService implements SigningService {
     }
 
     public ESignerSigningService(String endpoint, String accessToken) {
-        client = new RESTClient(endpoint, conn -> conn.setRequestProperty("Authorization", "Bearer " + accessToken));
+        client = new RESTClient(endpoint, request -> request.header("Authorization", "Bearer " + accessToken));
     }
 
     private static String getAccessToken(String endpoint, String clientId, String username, String password) throws IOException {
@@ -147,33 +151,57 @@ public class ESignerSigningService implements SigningService {
 
     @Override
     public byte[] sign(SigningServicePrivateKey privateKey, String algorithm, byte[] data) throws GeneralSecurityException {
-        MessageDigest digest = DigestAlgorithm.of(algorithm.substring(0, algorithm.toLowerCase().indexOf("with"))).getMessageDigest();
-        data = digest.digest(data);
-        String hash = Base64.getEncoder().encodeToString(data);
+        return signBatch(privateKey, algorithm, Collections.singletonList(data)).get(0);
+    }
 
-        Map<String, Object>  request = new LinkedHashMap<>();
-        request.put("credentialID", privateKey.getId());
-        request.put("SAD", getSignatureActivationData(privateKey, hash));
-        request.put("hash", new String[] { hash });
-        request.put("signAlgo", new DefaultSignatureAlgorithmIdentifierFinder().find(algorithm).getAlgorithm().getId());
+    /**
+     * Sign the data with a single authorization and a single request for up to
+     * {@link #MAX_HASHES_PER_REQUEST} hashes (the CSC API accepts several hashes
+     * for the same credential).
+     */
+    @Override
+    public List<byte[]> signBatch(SigningServicePrivateKey privateKey, String algorithm, List<byte[]> data) throws GeneralSecurityException {
+        MessageDigest digest = DigestAlgorithm.of(algorithm.substring(0, algorithm.toLowerCase().indexOf("with"))).getMessageDigest();
+        String signAlgo = new DefaultSignatureAlgorithmIdentifierFinder().find(algorithm).getAlgorithm().getId();
+
+        List<byte[]> signatures = new ArrayList<>(data.size());
+        for (int start = 0; start < data.size(); start += MAX_HASHES_PER_REQUEST) {
+            List<byte[]> chunk = data.subList(start, Math.min(data.size(), start + MAX_HASHES_PER_REQUEST));
+            String[] hashes = new String[chunk.size()];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = Base64.getEncoder().encodeToString(digest.digest(chunk.get(i)));
+            }
 
-        Map<String, Object> args = new HashMap<>();
-        args.put(JsonWriter.TYPE, "false");
-        try {
-            Map<String, ?> response = client.post("/csc/v0/signatures/signHash", JsonWriter.objectToJson(request, args));
-            Object[] signatures = (Object[]) response.get("signatures");
+            Map<String, Object>  request = new LinkedHashMap<>();
+            request.put("credentialID", privateKey.getId());
+            request.put("SAD", getSignatureActivationData(privateKey, hashes));
+            request.put("hash", hashes);
+            request.put("signAlgo", signAlgo);
 
-            return Base64.getDecoder().decode(signatures[0].toString());
-        } catch (IOException e) {
-            throw new GeneralSecurityException(e);
+            Map<String, Object> args = new HashMap<>();
+            args.put(JsonWriter.TYPE, "false");
+            try {
+                Map<String, ?> response = client.post("/csc/v0/signatures/signHash", JsonWriter.objectToJson(request, args));
+                Object[] values = (Object[]) response.get("signatures");
+                if (values == null || values.length != hashes.length) {
+                    throw new GeneralSecurityException("Unexpected number of signatures returned by SSL.com (" + (values != null ? values.length : 0) + " instead of " + hashes.length + ")");
+                }
+                for (Object value : values) {
+                    signatures.add(Base64.getDecoder().decode(value.toString()));
+                }
+            } catch (IOException e) {
+                throw new GeneralSecurityException(e);
+            }
         }
+
+        return signatures;
     }
 
-    private String getSignatureActivationData(SigningServicePrivateKey privateKey, String hash) throws GeneralSecurityException {
+    private String getSignatureActivationData(SigningServicePrivateKey privateKey, String[] hashes) throws GeneralSecurityException {
         Map<String, Object> request = new LinkedHashMap<>();
         request.put("credentialID", privateKey.getId());
-        request.put("numSignatures", 1);
-        request.put("hash", new String[] { hash });
+        request.put("numSignatures", hashes.length);
+        request.put("hash", hashes);
 
         String totpsecret = (String) privateKey.getProperties().get("totpsecret");
         if (totpsecret != null) {
@@ -19,10 +19,12 @@ package net.jsign.jca;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -75,7 +77,7 @@ public class GoogleCloudSigningService implements SigningService {
     public GoogleCloudSigningService(String keyring, String token, Function<String, Certificate[]> certificateStore) {
         this.keyring = keyring;
         this.certificateStore = certificateStore;
-        this.client = new RESTClient("https://cloudkms.googleapis.com/v1/", conn -> conn.setRequestProperty("Authorization", "Bearer " + token));
+        this.client = new RESTClient("https://cloudkms.googleapis.com/v1/", request -> request.header("Authorization", "Bearer " + token));
     }
 
     @Override
@@ -155,21 +157,36 @@ public class GoogleCloudSigningService implements SigningService {
 
     @Override
     public byte[] sign(SigningServicePrivateKey privateKey, String algorithm, byte[] data) throws GeneralSecurityException {
-        DigestAlgorithm digestAlgorithm = DigestAlgorithm.of(algorithm.substring(0, algorithm.toLowerCase().indexOf("with")));
-        data = digestAlgorithm.getMessageDigest().digest(data);
+        return signBatch(privateKey, algorithm, Collections.singletonList(data)).get(0);
+    }
 
-        Map<String, String> digest = new HashMap<>();
-        digest.put(digestAlgorithm.name().toLowerCase(), Base64.getEncoder().encodeToString(data));
-        Map<String, Object> request = new HashMap<>();
-        request.put("digest", digest);
+    /**
+     * Sign the data concurrently, Cloud KMS signs only one digest per request.
+     */
+    @Override
+    public List<byte[]> signBatch(SigningServicePrivateKey privateKey, String algorithm, List<byte[]> data) throws GeneralSecurityException {
+        DigestAlgorithm digestAlgorithm = DigestAlgorithm.of(algorithm.substring(0, algorithm.toLowerCase().indexOf("with")));
+        MessageDigest messageDigest = digestAlgorithm.getMessageDigest();
+
+        Map<String, Object> args = new HashMap<>();
+        args.put(JsonWriter.TYPE, "false");
+
+        List<String> requests = new ArrayList<>(data.size());
+        for (byte[] d : data) {
+            Map<String, String> digest = new HashMap<>();
+            digest.put(digestAlgorithm.name().toLowerCase(), Base64.getEncoder().encodeToString(messageDigest.digest(d)));
+            Map<String, Object> request = new HashMap<>();
+            request.put("digest", digest);
+            requests.add(JsonWriter.objectToJson(request, args));
+        }
 
         try {
-            Map<String, Object> args = new HashMap<>();
-            args.put(JsonWriter.TYPE, "false");
-            Map<String, ?> response = client.post(privateKey.getId() + ":asymmetricSign", JsonWriter.objectToJson(request, args));
-            String signature = (String) response.get("signature");
-
-            return Base64.getDecoder().decode(signature);
+            List<byte[]> signatures = new ArrayList<>(data.size());
+            for (Map<String, ?> response : client.post(privateKey.getId() + ":asymmetricSign", requests)) {
+                String signature = (String) response.get("signature");
+                signatures.add(Base64.getDecoder().decode(signature));
+            }
+            return signatures;
         } catch (IOException e) {
             throw new GeneralSecurityException(e);
         }
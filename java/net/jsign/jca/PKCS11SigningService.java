@@ -0,0 +1,488 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign.jca;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStoreException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import iaik.pkcs.pkcs11.DefaultInitializeArgs;
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Module;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.Slot;
+import iaik.pkcs.pkcs11.Token;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+import iaik.pkcs.pkcs11.objects.PrivateKey;
+import iaik.pkcs.pkcs11.objects.X509PublicKeyCertificate;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+
+import net.jsign.DigestAlgorithm;
+
+/**
+ * Signing service using a PKCS#11 token with a pool of sessions. The sessions
+ * are opened and logged in once, and the signatures requested concurrently
+ * are computed in parallel on the token, up to the number of sessions.
+ *
+ * <p>The digest is computed locally and the token only performs the raw
+ * RSA PKCS#1 v1.5 or ECDSA operation (CKM_RSA_PKCS and CKM_ECDSA mechanisms).</p>
+ *
+ * @since 4.2
+ */
+public class PKCS11SigningService implements SigningService, Closeable {
+
+    private final Module module;
+
+    /** Tells if the library was initialized by the service (and must be finalized on close) */
+    private boolean initialized;
+
+    /** The sessions available, a session performs one operation at a time */
+    private final BlockingQueue<Session> sessions;
+
+    /** All the sessions opened, closed with the service */
+    private final List<Session> openedSessions = new ArrayList<>();
+
+    /** Tells if the service was closed */
+    private volatile boolean closed;
+
+    /**
+     * Creates a PKCS#11 signing service.
+     *
+     * @param library       the path to the PKCS#11 library of the token
+     * @param slotListIndex the index of the slot in the list of slots returned by the library,
+     *                      or -1 to use the first slot with a token present
+     * @param pin           the PIN of the user (may be null if the token doesn't require a login)
+     * @param sessions      the number of sessions opened
+     * @throws IOException if the library can't be loaded or the sessions can't be opened
+     */
+    public PKCS11SigningService(String library, int slotListIndex, char[] pin, int sessions) throws IOException {
+        this(library, -1, slotListIndex, pin, sessions);
+    }
+
+    /**
+     * Creates a PKCS#11 signing service.
+     *
+     * @param library       the path to the PKCS#11 library of the token
+     * @param slot          the identifier of the slot, or -1 to select the slot by index
+     * @param slotListIndex the index of the slot in the list of slots returned by the library,
+     *                      or -1 to use the first slot with a token present (ignored if the slot is specified)
+     * @param pin           the PIN of the user (may be null if the token doesn't require a login)
+     * @param sessions      the number of sessions opened
+     * @throws IOException if the library can't be loaded or the sessions can't be opened
+     */
+    public PKCS11SigningService(String library, long slot, int slotListIndex, char[] pin, int sessions) throws IOException {
+        if (sessions < 1) {
+            throw new IllegalArgumentException("The number of sessions must be positive");
+        }
+
+        this.module = Module.getInstance(library);
+        this.sessions = new ArrayBlockingQueue<>(sessions);
+
+        try {
+            try {
+                module.initialize(new DefaultInitializeArgs());
+                initialized = true;
+            } catch (PKCS11Exception e) {
+                // the library may already be used by the SunPKCS11 provider
+                if (e.getErrorCode() != PKCS11Constants.CKR_CRYPTOKI_ALREADY_INITIALIZED) {
+                    throw e;
+                }
+            }
+
+            Token token = getSlot(library, slot, slotListIndex).getToken();
+            if (token == null) {
+                throw new TokenException("No PKCS#11 token present in " + library + (slot >= 0 ? " at the slot " + slot : " at the slot index " + Math.max(slotListIndex, 0)));
+            }
+
+            for (int i = 0; i < sessions; i++) {
+                Session session = token.openSession(Token.SessionType.SERIAL_SESSION, Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+                openedSessions.add(session);
+                this.sessions.add(session);
+            }
+
+            // the login state is shared by all the sessions of the application
+            if (pin != null) {
+                try {
+                    openedSessions.get(0).login(Session.UserType.USER, pin);
+                } catch (PKCS11Exception e) {
+                    if (e.getErrorCode() != PKCS11Constants.CKR_USER_ALREADY_LOGGED_IN) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (TokenException e) {
+            close();
+            throw new IOException("Unable to open the PKCS#11 sessions with " + library, e);
+        }
+    }
+
+    /**
+     * Creates a signing service using the sessions specified (already opened and logged in).
+     * The sessions are closed with the service, the library isn't finalized.
+     */
+    PKCS11SigningService(List<? extends Session> sessions) {
+        this.module = null;
+        this.sessions = new ArrayBlockingQueue<>(sessions.size(), false, sessions);
+        this.openedSessions.addAll(sessions);
+    }
+
+    /**
+     * Returns the slot with the identifier specified, or the slot at the index specified.
+     */
+    private Slot getSlot(String library, long slotId, int slotListIndex) throws TokenException {
+        if (slotId >= 0) {
+            for (Slot slot : module.getSlotList(false)) {
+                if (slot.getSlotID() == slotId) {
+                    return slot;
+                }
+            }
+            throw new TokenException("No PKCS#11 slot " + slotId + " found in " + library);
+        }
+
+        Slot[] slots = module.getSlotList(slotListIndex < 0);
+        if (slots.length == 0 || slotListIndex >= slots.length) {
+            throw new TokenException("No PKCS#11 token found in " + library + (slotListIndex >= 0 ? " at the slot index " + slotListIndex : ""));
+        }
+        return slots[Math.max(slotListIndex, 0)];
+    }
+
+    /**
+     * Creates a PKCS#11 signing service from a SunPKCS11 configuration file. The <code>library</code>,
+     * <code>slot</code> and <code>slotListIndex</code> settings are used, the other settings are ignored.
+     *
+     * @param configuration the SunPKCS11 configuration file
+     * @param pin           the PIN of the user (may be null if the token doesn't require a login)
+     * @param sessions      the number of sessions opened
+     * @throws IOException if the configuration can't be read or is invalid, or if the sessions can't be opened
+     */
+    public static PKCS11SigningService fromSunPKCS11Configuration(String configuration, char[] pin, int sessions) throws IOException {
+        String library = null;
+        long slot = -1;
+        int slotListIndex = -1;
+        for (String line : Files.readAllLines(new File(configuration).toPath())) {
+            String[] setting = line.split("=", 2);
+            if (setting.length == 2) {
+                String name = setting[0].trim();
+                String value = setting[1].trim().replaceAll("^\"|\"$", "");
+                try {
+                    if ("library".equals(name)) {
+                        library = value;
+                    } else if ("slot".equals(name)) {
+                        slot = Long.decode(value);
+                    } else if ("slotListIndex".equals(name)) {
+                        slotListIndex = Integer.decode(value);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid " + name + " setting in the SunPKCS11 configuration " + configuration + ": " + value, e);
+                }
+            }
+        }
+
+        if (library == null) {
+            throw new IOException("The library of the PKCS#11 token isn't defined in the SunPKCS11 configuration " + configuration);
+        }
+        if (slot >= 0 && slotListIndex >= 0) {
+            throw new IOException("The slot and slotListIndex settings can't be both specified in the SunPKCS11 configuration " + configuration);
+        }
+
+        return new PKCS11SigningService(library, slot, slotListIndex, pin, sessions);
+    }
+
+    @Override
+    public String getName() {
+        return "PKCS11";
+    }
+
+    /**
+     * Operation performed with a session of the pool.
+     */
+    private interface SessionOperation<T> {
+        T execute(Session session) throws TokenException, GeneralSecurityException;
+    }
+
+    /**
+     * Borrows a session from the pool to perform the operation specified,
+     * and waits if all the sessions are busy.
+     */
+    private <T> T execute(SessionOperation<T> operation) throws GeneralSecurityException {
+        if (closed) {
+            throw new GeneralSecurityException("The PKCS#11 signing service is closed");
+        }
+
+        Session session;
+        try {
+            session = sessions.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while waiting for a PKCS#11 session", e);
+        }
+
+        try {
+            return operation.execute(session);
+        } catch (TokenException e) {
+            throw new GeneralSecurityException(e);
+        } finally {
+            sessions.add(session);
+        }
+    }
+
+    /**
+     * Returns the certificates stored on the token.
+     */
+    private List<X509PublicKeyCertificate> findCertificates() throws GeneralSecurityException {
+        return execute(session -> {
+            List<X509PublicKeyCertificate> certificates = new ArrayList<>();
+            for (PKCS11Object object : findObjects(session, new X509PublicKeyCertificate())) {
+                certificates.add((X509PublicKeyCertificate) object);
+            }
+            return certificates;
+        });
+    }
+
+    private List<PKCS11Object> findObjects(Session session, PKCS11Object template) throws TokenException {
+        List<PKCS11Object> objects = new ArrayList<>();
+        session.findObjectsInit(template);
+        try {
+            PKCS11Object[] found;
+            while ((found = session.findObjects(16)).length > 0) {
+                objects.addAll(Arrays.asList(found));
+            }
+        } finally {
+            session.findObjectsFinal();
+        }
+        return objects;
+    }
+
+    private X509PublicKeyCertificate findCertificate(String alias) throws GeneralSecurityException {
+        for (X509PublicKeyCertificate certificate : findCertificates()) {
+            char[] label = certificate.getLabel().getCharArrayValue();
+            if (label != null && alias.equals(new String(label))) {
+                return certificate;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<String> aliases() throws KeyStoreException {
+        try {
+            List<String> aliases = new ArrayList<>();
+            for (X509PublicKeyCertificate certificate : findCertificates()) {
+                char[] label = certificate.getLabel().getCharArrayValue();
+                if (label != null) {
+                    aliases.add(new String(label));
+                }
+            }
+            return aliases;
+        } catch (GeneralSecurityException e) {
+            throw new KeyStoreException(e);
+        }
+    }
+
+    /**
+     * Returns the certificate chain for the alias specified, completed with
+     * the issuer certificates stored on the token.
+     */
+    @Override
+    public Certificate[] getCertificateChain(String alias) throws KeyStoreException {
+        try {
+            List<X509Certificate> certificates = new ArrayList<>();
+            X509Certificate certificate = null;
+            for (X509PublicKeyCertificate object : findCertificates()) {
+                X509Certificate c = toX509Certificate(object);
+                certificates.add(c);
+                char[] label = object.getLabel().getCharArrayValue();
+                if (label != null && alias.equals(new String(label))) {
+                    certificate = c;
+                }
+            }
+
+            if (certificate == null) {
+                return null;
+            }
+
+            List<Certificate> chain = new ArrayList<>();
+            chain.add(certificate);
+            while (!certificate.getIssuerX500Principal().equals(certificate.getSubjectX500Principal()) && chain.size() < certificates.size()) {
+                X509Certificate issuer = null;
+                for (X509Certificate c : certificates) {
+                    if (c.getSubjectX500Principal().equals(certificate.getIssuerX500Principal())) {
+                        issuer = c;
+                        break;
+                    }
+                }
+                if (issuer == null) {
+                    break;
+                }
+                chain.add(issuer);
+                certificate = issuer;
+            }
+
+            return chain.toArray(new Certificate[0]);
+        } catch (GeneralSecurityException e) {
+            throw new KeyStoreException(e);
+        }
+    }
+
+    private X509Certificate toX509Certificate(X509PublicKeyCertificate certificate) throws CertificateException {
+        byte[] encoded = certificate.getValue().getByteArrayValue();
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(encoded));
+    }
+
+    /**
+     * Returns the private key associated to the certificate, the key is looked up
+     * by the identifier (CKA_ID) of the certificate, or by its label otherwise.
+     * The identifier of the key returned is its object handle.
+     */
+    @Override
+    public SigningServicePrivateKey getPrivateKey(String alias, char[] password) throws UnrecoverableKeyException {
+        try {
+            X509PublicKeyCertificate certificate = findCertificate(alias);
+            byte[] id = certificate != null ? certificate.getId().getByteArrayValue() : null;
+
+            PrivateKey template = new PrivateKey();
+            if (id != null) {
+                template.getId().setByteArrayValue(id);
+            } else {
+                template.getLabel().setCharArrayValue(alias.toCharArray());
+            }
+
+            List<PKCS11Object> keys = execute(session -> findObjects(session, template));
+            if (keys.isEmpty()) {
+                throw new UnrecoverableKeyException("Unable to find the private key of the certificate '" + alias + "'");
+            }
+
+            PrivateKey key = (PrivateKey) keys.get(0);
+            long type = key.getKeyType().getLongValue();
+            String algorithm;
+            if (type == PKCS11Constants.CKK_RSA) {
+                algorithm = "RSA";
+            } else if (type == PKCS11Constants.CKK_EC) {
+                algorithm = "EC";
+            } else {
+                throw new UnrecoverableKeyException("Unsupported type of private key for the certificate '" + alias + "': " + type);
+            }
+
+            return new SigningServicePrivateKey(String.valueOf(key.getObjectHandle()), algorithm);
+        } catch (UnrecoverableKeyException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw (UnrecoverableKeyException) new UnrecoverableKeyException("Unable to retrieve the private key of the certificate '" + alias + "'").initCause(e);
+        }
+    }
+
+    @Override
+    public byte[] sign(SigningServicePrivateKey privateKey, String algorithm, byte[] data) throws GeneralSecurityException {
+        int separator = algorithm.toLowerCase().indexOf("with");
+        DigestAlgorithm digestAlgorithm = separator > 0 ? DigestAlgorithm.of(algorithm.substring(0, separator)) : null;
+        if (digestAlgorithm == null) {
+            throw new InvalidAlgorithmParameterException("Unsupported signing algorithm: " + algorithm);
+        }
+        byte[] digest = digestAlgorithm.getMessageDigest().digest(data);
+
+        Mechanism mechanism;
+        byte[] input;
+        if (algorithm.endsWith("withRSA")) {
+            mechanism = Mechanism.get(PKCS11Constants.CKM_RSA_PKCS);
+            try {
+                input = new DigestInfo(new AlgorithmIdentifier(digestAlgorithm.oid, DERNull.INSTANCE), digest).getEncoded("DER");
+            } catch (IOException e) {
+                throw new GeneralSecurityException(e);
+            }
+        } else if (algorithm.endsWith("withECDSA")) {
+            mechanism = Mechanism.get(PKCS11Constants.CKM_ECDSA);
+            input = digest;
+        } else {
+            throw new InvalidAlgorithmParameterException("Unsupported signing algorithm: " + algorithm);
+        }
+
+        PrivateKey key = new PrivateKey();
+        key.setObjectHandle(Long.parseLong(privateKey.getId()));
+
+        byte[] signature = execute(session -> {
+            session.signInit(mechanism, key);
+            return session.sign(input);
+        });
+
+        return mechanism.getMechanismCode() == PKCS11Constants.CKM_ECDSA ? toDER(signature) : signature;
+    }
+
+    /**
+     * Converts the raw ECDSA signature returned by the token (r and s concatenated)
+     * into the DER encoded structure expected by the JCA.
+     */
+    private byte[] toDER(byte[] signature) throws GeneralSecurityException {
+        int length = signature.length / 2;
+        BigInteger r = new BigInteger(1, Arrays.copyOfRange(signature, 0, length));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(signature, length, signature.length));
+        try {
+            return new DERSequence(new ASN1Encodable[] { new ASN1Integer(r), new ASN1Integer(s) }).getEncoded("DER");
+        } catch (IOException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    /**
+     * Closes the sessions and releases the library, unless it was already initialized by another provider.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Session session : openedSessions) {
+            try {
+                session.closeSession();
+            } catch (TokenException e) {
+                // ignored, the session is discarded anyway
+            }
+        }
+        // the closed sessions are left in the pool, the threads waiting for a session fail instead of blocking
+        openedSessions.clear();
+
+        if (initialized) {
+            try {
+                module.finalize(null);
+            } catch (TokenException e) {
+                // ignored
+            }
+            initialized = false;
+        }
+    }
+}
@@ -17,25 +17,51 @@
 package net.jsign.jca;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 import com.cedarsoftware.util.io.JsonReader;
-import org.apache.commons.io.IOUtils;
+
+import net.jsign.HttpTransport;
 
 class RESTClient {
 
+    /** The transport shared by the REST clients */
+    private static final HttpTransport TRANSPORT = new HttpTransport(Duration.ofSeconds(10), null, null, true);
+
+    /** The maximum number of concurrent requests sent by {@link #post(String, List)} */
+    static final int MAX_CONCURRENT_REQUESTS = 16;
+
     /** Base URL of the REST service for relative resources */
     private final String endpoint;
 
+    /** The transport sending the requests (the connections are pooled and reused) */
+    private final HttpTransport transport;
+
     /** Callback setting the authentication headers for the request */
-    private final Consumer<HttpURLConnection> authenticationHandler;
+    private final Consumer<HttpRequest.Builder> authenticationHandler;
 
-    RESTClient(String endpoint, Consumer<HttpURLConnection>  authenticationHeaderSupplier) {
+    RESTClient(String endpoint, Consumer<HttpRequest.Builder> authenticationHeaderSupplier) {
+        this(endpoint, TRANSPORT, authenticationHeaderSupplier);
+    }
+
+    RESTClient(String endpoint, HttpTransport transport, Consumer<HttpRequest.Builder> authenticationHeaderSupplier) {
         this.endpoint = endpoint;
+        this.transport = transport;
         this.authenticationHandler = authenticationHeaderSupplier;
     }
 
@@ -47,35 +73,109 @@ class RESTClient {
         return query("POST", resource, body);
     }
 
+    /**
+     * Posts several requests to the same resource concurrently and returns the
+     * responses in the same order. At most {@link #MAX_CONCURRENT_REQUESTS}
+     * requests are pending at the same time, and no more requests are sent
+     * once one of them has failed.
+     *
+     * @param resource the resource (relative to the endpoint, or absolute)
+     * @param bodies   the JSON bodies of the requests
+     */
+    List<Map<String, ?>> post(String resource, List<String> bodies) throws IOException {
+        if (bodies.size() == 1) {
+            return Collections.singletonList(post(resource, bodies.get(0)));
+        }
+
+        Semaphore permits = new Semaphore(MAX_CONCURRENT_REQUESTS);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<CompletableFuture<Map<String, ?>>> futures = new ArrayList<>(bodies.size());
+        try {
+            for (String body : bodies) {
+                permits.acquire();
+                if (failed.get()) {
+                    permits.release();
+                    break;
+                }
+                HttpRequest request = createRequest("POST", resource, body);
+                futures.add(transport.sendAsync(request)
+                        .whenComplete((response, e) -> permits.release())
+                        .<Map<String, ?>>thenApply(response -> {
+                            try {
+                                return handleResponse(request.uri(), response);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })
+                        .whenComplete((response, e) -> {
+                            if (e != null) {
+                                failed.set(true);
+                            }
+                        }));
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending the requests to " + resource);
+        }
+
+        List<Map<String, ?>> responses = new ArrayList<>(bodies.size());
+        IOException exception = null;
+        for (CompletableFuture<Map<String, ?>> future : futures) {
+            try {
+                responses.add(future.join());
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                IOException ioe = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                if (exception == null) {
+                    exception = ioe;
+                } else {
+                    exception.addSuppressed(ioe);
+                }
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+
+        return responses;
+    }
+
     private Map<String, ?> query(String method, String resource, String body) throws IOException {
-        URL url = new URL(resource.startsWith("http") ? resource : endpoint + resource);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod(method);
-        conn.setRequestProperty("User-Agent", "Jsign (https://ebourg.github.io/jsign/)");
+        HttpRequest request = createRequest(method, resource, body);
+        return handleResponse(request.uri(), transport.send(request));
+    }
+
+    private HttpRequest createRequest(String method, String resource, String body) {
+        URI uri = URI.create(resource.startsWith("http") ? resource : endpoint + resource);
+        HttpRequest.Builder request = transport.newRequest(uri);
+        request.header("User-Agent", "Jsign (https://ebourg.github.io/jsign/)");
         if (authenticationHandler != null) {
-            authenticationHandler.accept(conn);
+            authenticationHandler.accept(request);
         }
 
         if (body != null) {
-            byte[] data = body.getBytes(StandardCharsets.UTF_8);
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-            conn.setRequestProperty("Content-Length", String.valueOf(data.length));
-            conn.getOutputStream().write(data);
+            request.header("Content-Type", "application/json; charset=utf-8");
+            request.method(method, HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+        } else {
+            request.method(method, HttpRequest.BodyPublishers.noBody());
         }
 
-        int responseCode = conn.getResponseCode();
-        String contentType = conn.getHeaderField("Content-Type");
-        if (responseCode < 400) {
-            String response = IOUtils.toString(conn.getInputStream(), StandardCharsets.UTF_8);
+        return request.build();
+    }
 
-            return JsonReader.jsonToMaps(response);
+    private Map<String, ?> handleResponse(URI uri, HttpResponse<byte[]> response) throws IOException {
+        int responseCode = response.statusCode();
+        String contentType = response.headers().firstValue("Content-Type").orElse(null);
+        String content = new String(response.body(), StandardCharsets.UTF_8);
+        if (responseCode < 400) {
+            return JsonReader.jsonToMaps(content);
         } else {
-            String error = IOUtils.toString(conn.getErrorStream(), StandardCharsets.UTF_8);
             if (contentType != null && contentType.startsWith("application/json")) {
-                throw new IOException(getErrorMessage(JsonReader.jsonToMaps(error)));
+                throw new IOException(getErrorMessage(JsonReader.jsonToMaps(content)));
             } else {
-                throw new IOException("HTTP Error " + responseCode + (conn.getResponseMessage() != null ? " - " + conn.getResponseMessage() : "") + " (" + url + ")");
+                throw new IOException("HTTP Error " + responseCode + " (" + uri + ")");
             }
         }
     }
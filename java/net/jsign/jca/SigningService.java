@@ -20,6 +20,7 @@ import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -72,4 +73,23 @@ public interface SigningService {
      * @param data       the data to be signed
      */
     byte[] sign(SigningServicePrivateKey privateKey, String algorithm, byte[] data) throws GeneralSecurityException;
+
+    /**
+     * Sign several data with the private key specified. The default implementation
+     * signs the data one at a time, the services able to sign several digests
+     * in a single request, or concurrently, override this method.
+     *
+     * @param privateKey the private key
+     * @param algorithm  the signing algorithm (for example SHA256withRSA)
+     * @param data       the data to be signed
+     * @return the signatures, in the same order as the data
+     * @since 4.2
+     */
+    default List<byte[]> signBatch(SigningServicePrivateKey privateKey, String algorithm, List<byte[]> data) throws GeneralSecurityException {
+        List<byte[]> signatures = new ArrayList<>(data.size());
+        for (byte[] d : data) {
+            signatures.add(sign(privateKey, algorithm, d));
+        }
+        return signatures;
+    }
 }
@@ -0,0 +1,378 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign.jca;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the certificate aliases, the certificate chains and the private key
+ * descriptors retrieved from the signing services. The entries expire after
+ * a configurable time to live. The cache is thread-safe and can be shared by
+ * several services (see {@link CachingSigningService}).
+ *
+ * <p>The cache can optionally be persisted to a file to survive the restarts
+ * of the JVM. Only public data is written to the file (no password, and the
+ * private keys are only referenced by their identifier), and the file is
+ * ignored if its checksum doesn't match its content. The entries loaded
+ * are written to the file by {@link #flush()}.</p>
+ *
+ * @since 4.2
+ */
+public class SigningServiceCache {
+
+    /** The cache shared by default by the signing services */
+    private static final SigningServiceCache DEFAULT = new SigningServiceCache(Duration.ofHours(1));
+
+    /** Header of the cache file */
+    private static final int MAGIC = 0x4A534343; // JSCC
+
+    /** Version of the format of the cache file */
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_ALIASES = 1;
+    private static final byte TYPE_CERTIFICATE_CHAIN = 2;
+    private static final byte TYPE_PRIVATE_KEY = 3;
+
+    /** The time to live of the entries */
+    private final Duration ttl;
+
+    /** The file persisting the cache (null for a memory only cache) */
+    private final File file;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Tells if entries were added since the file was written */
+    private volatile boolean modified;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Loads a value missing from the cache.
+     */
+    interface Loader<T, E extends Exception> {
+        T load() throws E;
+    }
+
+    private static class Entry {
+        final Object value;
+        final long expiration;
+
+        Entry(Object value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiration;
+        }
+    }
+
+    /**
+     * Creates a memory only cache.
+     *
+     * @param ttl the time to live of the entries
+     */
+    public SigningServiceCache(Duration ttl) {
+        this(ttl, null);
+    }
+
+    /**
+     * Creates a cache persisted to the specified file. The valid entries
+     * of the file are loaded if it exists.
+     *
+     * @param ttl  the time to live of the entries
+     * @param file the file persisting the cache
+     */
+    public SigningServiceCache(Duration ttl, File file) {
+        this.ttl = ttl;
+        this.file = file;
+        if (file != null && file.exists()) {
+            try {
+                load();
+            } catch (IOException | CertificateException | RuntimeException e) {
+                // corrupted or incompatible file, the cache starts empty and the file will be overwritten
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the memory only cache shared by default, the entries expire after one hour.
+     */
+    public static SigningServiceCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the number of lookups that found a valid entry.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that required a query to the signing service.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries in the cache, including the expired entries not evicted yet.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all the entries of the cache (the cache file is kept).
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the value cached for the specified key, or loads and caches it
+     * if it's missing or expired. The <code>null</code> values are not cached.
+     */
+    @SuppressWarnings("unchecked")
+    <T, E extends Exception> T get(String key, Loader<T, E> loader) throws E {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isExpired(now)) {
+            hits.increment();
+            return (T) entry.value;
+        }
+
+        misses.increment();
+        T value = loader.load();
+        if (value != null) {
+            entries.put(key, new Entry(value, now + ttl.toMillis()));
+            modified = file != null;
+        }
+        return value;
+    }
+
+    /**
+     * Writes the cache file if entries were added since it was last written.
+     * Nothing is written for a memory only cache.
+     *
+     * @throws IOException if the file can't be written (the cache remains usable in memory)
+     */
+    public synchronized void flush() throws IOException {
+        if (modified) {
+            modified = false;
+            try {
+                save();
+            } catch (IOException e) {
+                modified = true;
+                throw e;
+            }
+        }
+    }
+
+    private void load() throws IOException, CertificateException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Invalid cache file " + file);
+        }
+
+        byte[] payload = new byte[readLength(in, 1)];
+        in.readFully(payload);
+        byte[] checksum = new byte[32];
+        in.readFully(checksum);
+        if (!MessageDigest.isEqual(checksum, sha256(payload))) {
+            throw new IOException("Corrupted cache file " + file);
+        }
+
+        long now = System.currentTimeMillis();
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            long expiration = in.readLong();
+            Object value;
+            switch (in.readByte()) {
+                case TYPE_ALIASES:
+                    List<String> aliases = new ArrayList<>();
+                    for (int n = in.readInt(); n > 0; n--) {
+                        aliases.add(in.readUTF());
+                    }
+                    value = aliases;
+                    break;
+                case TYPE_CERTIFICATE_CHAIN:
+                    Certificate[] chain = new Certificate[readLength(in, 4)];
+                    for (int j = 0; j < chain.length; j++) {
+                        byte[] encoded = new byte[readLength(in, 1)];
+                        in.readFully(encoded);
+                        chain[j] = certificateFactory.generateCertificate(new ByteArrayInputStream(encoded));
+                    }
+                    value = chain;
+                    break;
+                case TYPE_PRIVATE_KEY:
+                    SigningServicePrivateKey privateKey = new SigningServicePrivateKey(in.readUTF(), in.readUTF());
+                    for (int n = in.readInt(); n > 0; n--) {
+                        privateKey.getProperties().put(in.readUTF(), in.readUTF());
+                    }
+                    value = privateKey;
+                    break;
+                default:
+                    throw new IOException("Invalid cache file " + file);
+            }
+
+            if (expiration > now) {
+                entries.put(key, new Entry(value, expiration));
+            }
+        }
+    }
+
+    /**
+     * Reads the number of elements of an array, and checks that the remaining
+     * content is large enough to hold them (the elements having the specified
+     * minimum size).
+     */
+    private int readLength(DataInputStream in, int elementSize) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available() / elementSize) {
+            throw new IOException("Invalid cache file " + file);
+        }
+        return length;
+    }
+
+    private synchronized void save() throws IOException {
+        long now = System.currentTimeMillis();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+
+        List<Map.Entry<String, Entry>> persisted = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (!entry.getValue().isExpired(now) && isPersistable(entry.getValue().value)) {
+                persisted.add(entry);
+            }
+        }
+
+        out.writeInt(persisted.size());
+        for (Map.Entry<String, Entry> entry : persisted) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().expiration);
+            Object value = entry.getValue().value;
+            if (value instanceof List) {
+                List<?> aliases = (List<?>) value;
+                out.writeByte(TYPE_ALIASES);
+                out.writeInt(aliases.size());
+                for (Object alias : aliases) {
+                    out.writeUTF((String) alias);
+                }
+            } else if (value instanceof Certificate[]) {
+                Certificate[] chain = (Certificate[]) value;
+                out.writeByte(TYPE_CERTIFICATE_CHAIN);
+                out.writeInt(chain.length);
+                for (Certificate certificate : chain) {
+                    byte[] encoded;
+                    try {
+                        encoded = certificate.getEncoded();
+                    } catch (CertificateException e) {
+                        throw new IOException(e);
+                    }
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+            } else {
+                SigningServicePrivateKey privateKey = (SigningServicePrivateKey) value;
+                out.writeByte(TYPE_PRIVATE_KEY);
+                out.writeUTF(privateKey.getId());
+                out.writeUTF(privateKey.getAlgorithm());
+                out.writeInt(privateKey.getProperties().size());
+                for (Map.Entry<String, Object> property : privateKey.getProperties().entrySet()) {
+                    out.writeUTF(property.getKey());
+                    out.writeUTF((String) property.getValue());
+                }
+            }
+        }
+        out.flush();
+
+        byte[] payload = bout.toByteArray();
+        bout = new ByteArrayOutputStream(payload.length + 44);
+        out = new DataOutputStream(bout);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.write(sha256(payload));
+        out.flush();
+
+        // write to a temporary file and move it to avoid leaving a truncated file if the JVM exits,
+        // the name of the temporary file is unique since the cache file may be shared by several processes
+        Path tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            Files.write(tmp, bout.toByteArray());
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Tells if the value can be written to the cache file. The private keys
+     * with non textual properties are only cached in memory.
+     */
+    private boolean isPersistable(Object value) {
+        if (value instanceof SigningServicePrivateKey) {
+            for (Object property : ((SigningServicePrivateKey) value).getProperties().values()) {
+                if (!(property instanceof String)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHitCount() + ", misses=" + getMissCount() + ", size=" + size();
+    }
+}
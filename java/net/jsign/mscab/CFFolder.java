@@ -80,4 +80,21 @@ class CFFolder {
         save();
         digest.update(buffer.array());
     }
+
+    /**
+     * Shifts the offset of the first CFDATA block of the consecutive CFFOLDER
+     * structures found at the current position of the buffer. The position
+     * of the buffer is moved after the last structure.
+     *
+     * @param buffer the buffer containing the CFFOLDER structures (in little endian order)
+     * @param count  the number of CFFOLDER structures
+     * @param shift  the value added to the offsets
+     */
+    public static void shift(ByteBuffer buffer, int count, int shift) {
+        for (int i = 0; i < count; i++) {
+            int position = buffer.position();
+            buffer.putInt(position, (int) ((buffer.getInt(position) & 0xFFFFFFFFL) + shift));
+            buffer.position(position + BASE_SIZE);
+        }
+    }
 }
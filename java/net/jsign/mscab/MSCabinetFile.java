@@ -37,13 +37,12 @@ import org.bouncycastle.asn1.cms.AttributeTable;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x509.DigestInfo;
-import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.cms.SignerInformation;
 
 import net.jsign.DigestAlgorithm;
 import net.jsign.Signable;
+import net.jsign.SignatureContainer;
+import net.jsign.SignatureSummary;
 import net.jsign.asn1.authenticode.AuthenticodeObjectIdentifiers;
 import net.jsign.asn1.authenticode.SpcAttributeTypeAndOptionalValue;
 import net.jsign.asn1.authenticode.SpcIndirectDataContent;
@@ -67,6 +66,9 @@ public class MSCabinetFile implements Signable, Closeable {
 
     private final SeekableByteChannel channel;
 
+    /** The signatures of the file, decoded once until the signature is replaced */
+    private final SignatureContainer signatures = new SignatureContainer(this::readSignatures);
+
     /**
      * Tells if the specified file is a MS Cabinet file.
      *
@@ -155,74 +157,72 @@ public class MSCabinetFile implements Signable, Closeable {
         }
         modifiedHeader.headerDigestUpdate(digest);
 
-        channel.position(header.getHeaderSize());
-
-        if (header.hasPreviousCabinet()) {
-            digest.update(readNullTerminatedString(channel)); // szCabinetPrev
-            digest.update(readNullTerminatedString(channel)); // szDiskPrev
-        }
-
-        if (header.hasNextCabinet()) {
-            digest.update(readNullTerminatedString(channel)); // szCabinetNext
-            digest.update(readNullTerminatedString(channel)); // szDiskNext
-        }
-
-        for (int i = 0; i < header.cFolders; i++) {
-            CFFolder folder = CFFolder.read(channel);
-            if (!header.isReservePresent()) {
-                folder.coffCabStart += 4 + CABSignature.SIZE;
-            }
-            folder.digest(digest);
+        // the previous/next cabinet names and the CFFOLDER structures are digested as is
+        ByteBuffer table = readCabinetTable(header);
+        int foldersOffset = getFoldersOffset(header, table);
+        table.position(foldersOffset);
+        if (!header.isReservePresent()) {
+            CFFolder.shift(table, header.cFolders, 4 + CABSignature.SIZE);
         }
+        table.flip();
+        digest.update(table);
 
         long endPosition = header.hasSignature() ? header.getSignature().offset : channel.size();
-        updateDigest(channel, digest, channel.position(), endPosition);
+        updateDigest(channel, digest, header.getHeaderSize() + table.limit(), endPosition);
 
         return digest.digest();
     }
 
     @Override
     public ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm) throws IOException {
+        return createIndirectData(digestAlgorithm, computeDigest(digestAlgorithm.getMessageDigest()));
+    }
+
+    @Override
+    public List<ASN1Object> createIndirectData(List<DigestAlgorithm> digestAlgorithms) throws IOException {
+        byte[][] digests = computeDigests(DigestAlgorithm.getMessageDigests(digestAlgorithms));
+
+        List<ASN1Object> indirectData = new ArrayList<>();
+        for (int i = 0; i < digests.length; i++) {
+            indirectData.add(createIndirectData(digestAlgorithms.get(i), digests[i]));
+        }
+        return indirectData;
+    }
+
+    private ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm, byte[] digest) {
         AlgorithmIdentifier algorithmIdentifier = new AlgorithmIdentifier(digestAlgorithm.oid, DERNull.INSTANCE);
-        DigestInfo digestInfo = new DigestInfo(algorithmIdentifier, computeDigest(digestAlgorithm.getMessageDigest()));
+        DigestInfo digestInfo = new DigestInfo(algorithmIdentifier, digest);
         SpcAttributeTypeAndOptionalValue data = new SpcAttributeTypeAndOptionalValue(AuthenticodeObjectIdentifiers.SPC_CAB_DATA_OBJID, new SpcPeImageData());
 
         return new SpcIndirectDataContent(data, digestInfo);
     }
 
     @Override
-    public synchronized List<CMSSignedData> getSignatures() throws IOException {
-        List<CMSSignedData> signatures = new ArrayList<>();
-        try {
-            CABSignature cabsig = header.getSignature();
-            if (cabsig != null && cabsig.offset > 0) {
-                byte[] buffer = new byte[(int) cabsig.length];
-                channel.position(cabsig.offset);
-                channel.read(ByteBuffer.wrap(buffer));
-
-                CMSSignedData signedData;
-                signedData = new CMSSignedData((CMSProcessable) null, ContentInfo.getInstance(new ASN1InputStream(buffer).readObject()));
-                signatures.add(signedData);
-
-                SignerInformation signerInformation = signedData.getSignerInfos().getSigners().iterator().next();
-                AttributeTable unsignedAttributes = signerInformation.getUnsignedAttributes();
-                if (unsignedAttributes != null) {
-                    Attribute nestedSignatures = unsignedAttributes.get(AuthenticodeObjectIdentifiers.SPC_NESTED_SIGNATURE_OBJID);
-                    if (nestedSignatures != null) {
-                        for (ASN1Encodable nestedSignature : nestedSignatures.getAttrValues()) {
-                            signatures.add(new CMSSignedData((CMSProcessable) null, ContentInfo.getInstance(nestedSignature)));
-                        }
-                    }
-                }
+    public List<CMSSignedData> getSignatures() throws IOException {
+        return signatures.getSignatures();
+    }
+
+    private synchronized List<SignatureSummary> readSignatures() throws IOException {
+        List<SignatureSummary> signatures = new ArrayList<>();
+        CABSignature cabsig = header.getSignature();
+        if (cabsig != null && cabsig.offset > 0) {
+            byte[] buffer = new byte[(int) cabsig.length];
+            channel.position(cabsig.offset);
+            channel.read(ByteBuffer.wrap(buffer));
+
+            try {
+                signatures.add(SignatureSummary.parse(buffer));
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-        } catch (CMSException e) {
-            throw new IOException(e);
         }
         return signatures;
     }
 
     @Override
     public synchronized void setSignature(CMSSignedData signature) throws IOException {
+        signatures.reset();
+
         byte[] content = signature.toASN1Structure().getEncoded("DER");
 
         int shift = 0;
@@ -251,25 +251,19 @@ public class MSCabinetFile implements Signable, Closeable {
         buffer.flip();
         channel.write(buffer);
 
-        // skip the previous/next cabinet names
-        if (header.hasPreviousCabinet()) {
-            readNullTerminatedString(channel); // szCabinetPrev
-            readNullTerminatedString(channel); // szDiskPrev
-        }
-
-        if (header.hasNextCabinet()) {
-            readNullTerminatedString(channel); // szCabinetNext
-            readNullTerminatedString(channel); // szDiskNext
-        }
-
         // shift the start offset of the CFFOLDER structures
-        for (int i = 0; i < header.cFolders; i++) {
-            long position = channel.position();
-            CFFolder folder = CFFolder.read(channel);
-            folder.coffCabStart += shift;
-
-            channel.position(position);
-            folder.write(channel);
+        if (shift != 0) {
+            ByteBuffer table = readCabinetTable(header);
+            int foldersOffset = getFoldersOffset(header, table);
+            table.position(foldersOffset);
+            CFFolder.shift(table, header.cFolders, shift);
+            table.limit(table.position());
+            table.position(foldersOffset);
+
+            channel.position(header.getHeaderSize() + foldersOffset);
+            while (table.hasRemaining()) {
+                channel.write(table);
+            }
         }
 
         // write the signature
@@ -282,6 +276,52 @@ public class MSCabinetFile implements Signable, Closeable {
         }
     }
 
+    /**
+     * Reads the optional previous/next cabinet names and the CFFOLDER structures
+     * following the header in a single operation. The names are at most 255
+     * characters long (plus the null terminator).
+     *
+     * @param header the header of the cabinet
+     * @return the buffer containing the names and the CFFOLDER structures
+     */
+    private ByteBuffer readCabinetTable(CFHeader header) throws IOException {
+        int names = (header.hasPreviousCabinet() ? 2 : 0) + (header.hasNextCabinet() ? 2 : 0);
+        long position = header.getHeaderSize();
+        long length = Math.min(names * 256L + header.cFolders * CFFolder.BASE_SIZE, channel.size() - position);
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(length, 0)).order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(position);
+        while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Returns the offset of the CFFOLDER structures in the buffer returned by readCabinetTable().
+     * The buffer is truncated after the last CFFOLDER structure.
+     */
+    private int getFoldersOffset(CFHeader header, ByteBuffer table) throws IOException {
+        int names = (header.hasPreviousCabinet() ? 2 : 0) + (header.hasNextCabinet() ? 2 : 0);
+        int offset = 0;
+        for (int i = 0; i < names; i++) {
+            // szCabinetPrev, szDiskPrev, szCabinetNext, szDiskNext
+            while (offset < table.limit() && table.get(offset) != 0) {
+                offset++;
+            }
+            offset++;
+        }
+
+        int end = offset + header.cFolders * CFFolder.BASE_SIZE;
+        if (end > table.limit()) {
+            throw new IOException("Couldn't read CFFOLDER");
+        }
+        table.limit(end);
+
+        return offset;
+    }
+
     @Override
     public void save() {
     }
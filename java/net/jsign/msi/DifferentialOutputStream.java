@@ -0,0 +1,76 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign.msi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Output stream writing to a channel only the blocks that differ from the
+ * current content of the channel. This is used to save a compound document
+ * modified in memory without rewriting the sectors left unchanged.
+ *
+ * @since 4.2
+ */
+class DifferentialOutputStream extends OutputStream {
+
+    /** The size of the blocks compared (the sector size of version 4 compound documents) */
+    private static final int BLOCK_SIZE = 4096;
+
+    private final SeekableByteChannel channel;
+
+    /** The buffer receiving the current content of the channel */
+    private final ByteBuffer current = ByteBuffer.allocate(BLOCK_SIZE);
+
+    DifferentialOutputStream(SeekableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, BLOCK_SIZE);
+            long position = channel.position();
+
+            current.clear();
+            current.limit(length);
+            while (current.hasRemaining() && channel.read(current) > 0) {
+            }
+
+            if (current.position() == length && Arrays.equals(current.array(), 0, length, b, off, off + length)) {
+                channel.position(position + length);
+            } else {
+                ByteBuffer data = ByteBuffer.wrap(b, off, length);
+                channel.position(position);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+
+            off += length;
+            len -= length;
+        }
+    }
+}
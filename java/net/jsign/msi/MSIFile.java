@@ -51,12 +51,12 @@ import org.bouncycastle.asn1.cms.AttributeTable;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x509.DigestInfo;
-import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.cms.SignerInformation;
 
 import net.jsign.DigestAlgorithm;
 import net.jsign.Signable;
+import net.jsign.SignatureContainer;
+import net.jsign.SignatureSummary;
 import net.jsign.asn1.authenticode.AuthenticodeObjectIdentifiers;
 import net.jsign.asn1.authenticode.SpcAttributeTypeAndOptionalValue;
 import net.jsign.asn1.authenticode.SpcIndirectDataContent;
@@ -84,8 +84,21 @@ public class MSIFile implements Signable, Closeable {
      */
     private final POIFSFileSystem fsRead;
 
-    /** The POI filesystem used for writing to the file */
-    private final POIFSFileSystem fsWrite;
+    /**
+     * The POI filesystem used for writing to the file, opened on the first
+     * modification. When signing in memory the same filesystem is used for
+     * reading and writing.
+     */
+    private POIFSFileSystem fsWrite;
+
+    /** The file opened, or null when signing in memory */
+    private final File file;
+
+    /** The signatures of the file, decoded once until the signature is replaced */
+    private final SignatureContainer signatures = new SignatureContainer(this::readSignatures);
+
+    /** The streams covered by the digest, in the order they are hashed */
+    private List<DocumentProperty> digestedStreams;
 
     /** The channel used for in-memory signing */
     private SeekableByteChannel channel;
@@ -110,8 +123,8 @@ public class MSIFile implements Signable, Closeable {
      * @throws IOException if an I/O error occurs
      */
     public MSIFile(File file) throws IOException {
+        this.file = file;
         this.fsRead = new POIFSFileSystem(file, true);
-        this.fsWrite = new POIFSFileSystem(file, false);
     }
 
     /**
@@ -121,6 +134,7 @@ public class MSIFile implements Signable, Closeable {
      * @throws IOException if an I/O error occurs
      */
     public MSIFile(final SeekableByteChannel channel) throws IOException {
+        this.file = null;
         this.channel = channel;
         InputStream in = new FilterInputStream(Channels.newInputStream(channel)) {
             public void close() { }
@@ -155,25 +169,45 @@ public class MSIFile implements Signable, Closeable {
         }
     }
 
-    private List<Property> getSortedProperties() {
-        List<Property> entries = new ArrayList<>();
-        
-        append(fsRead.getPropertyTable().getRoot(), entries);
-        
-        return entries;
+    /**
+     * Returns the filesystem used for writing to the file, and opens it if necessary.
+     */
+    private POIFSFileSystem getWritableFileSystem() throws IOException {
+        if (fsWrite == null) {
+            fsWrite = new POIFSFileSystem(file, false);
+        }
+        return fsWrite;
+    }
+
+    /**
+     * Returns the streams covered by the digest, sorted in the order they are
+     * hashed. The directory tree is walked only once, the signature streams
+     * are excluded.
+     */
+    private synchronized List<DocumentProperty> getDigestedStreams() {
+        if (digestedStreams == null) {
+            List<DocumentProperty> streams = new ArrayList<>();
+            append(fsRead.getPropertyTable().getRoot(), streams);
+            digestedStreams = streams;
+        }
+        return digestedStreams;
     }
 
-    private void append(DirectoryProperty node, List<Property> entries) {
+    private void append(DirectoryProperty node, List<DocumentProperty> streams) {
         Map<MSIStreamName, Property> sortedEntries = new TreeMap<>();
         for (Property entry : node) {
             sortedEntries.put(new MSIStreamName(entry.getName()), entry);
         }
 
-        for (Property property : sortedEntries.values()) {
-            if (!property.isDirectory()) {
-                entries.add(property);
+        for (Map.Entry<MSIStreamName, Property> entry : sortedEntries.entrySet()) {
+            Property property = entry.getValue();
+            if (property.isDirectory()) {
+                append((DirectoryProperty) property, streams);
             } else {
-                append((DirectoryProperty) property, entries);
+                String name = entry.getKey().decode();
+                if (!name.equals(DIGITAL_SIGNATURE_ENTRY_NAME) && !name.equals(MSI_DIGITAL_SIGNATURE_EX_ENTRY_NAME)) {
+                    streams.add((DocumentProperty) property);
+                }
             }
         }
     }
@@ -181,13 +215,8 @@ public class MSIFile implements Signable, Closeable {
     @Override
     public byte[] computeDigest(MessageDigest digest) {
         // hash the entries
-        for (Property property : getSortedProperties()) {
-            String name = new MSIStreamName(property.getName()).decode();
-            if (name.equals(DIGITAL_SIGNATURE_ENTRY_NAME) || name.equals(MSI_DIGITAL_SIGNATURE_EX_ENTRY_NAME)) {
-                continue;
-            }
-
-            POIFSDocument document = new POIFSDocument((DocumentProperty) property, fsRead);
+        for (DocumentProperty property : getDigestedStreams()) {
+            POIFSDocument document = new POIFSDocument(property, fsRead);
             long remaining = document.getSize();
             for (ByteBuffer buffer : document) {
                 int size = buffer.remaining();
@@ -207,8 +236,23 @@ public class MSIFile implements Signable, Closeable {
 
     @Override
     public ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm) {
+        return createIndirectData(digestAlgorithm, computeDigest(digestAlgorithm.getMessageDigest()));
+    }
+
+    @Override
+    public List<ASN1Object> createIndirectData(List<DigestAlgorithm> digestAlgorithms) throws IOException {
+        byte[][] digests = computeDigests(DigestAlgorithm.getMessageDigests(digestAlgorithms));
+
+        List<ASN1Object> indirectData = new ArrayList<>();
+        for (int i = 0; i < digests.length; i++) {
+            indirectData.add(createIndirectData(digestAlgorithms.get(i), digests[i]));
+        }
+        return indirectData;
+    }
+
+    private ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm, byte[] digest) {
         AlgorithmIdentifier algorithmIdentifier = new AlgorithmIdentifier(digestAlgorithm.oid, DERNull.INSTANCE);
-        DigestInfo digestInfo = new DigestInfo(algorithmIdentifier, computeDigest(digestAlgorithm.getMessageDigest()));
+        DigestInfo digestInfo = new DigestInfo(algorithmIdentifier, digest);
 
         SpcUuid uuid = new SpcUuid("F1100C00-0000-0000-C000-000000000046");
         SpcAttributeTypeAndOptionalValue data = new SpcAttributeTypeAndOptionalValue(AuthenticodeObjectIdentifiers.SPC_SIPINFO_OBJID, new SpcSipInfo(1, uuid));
@@ -218,27 +262,18 @@ public class MSIFile implements Signable, Closeable {
 
     @Override
     public List<CMSSignedData> getSignatures() throws IOException {
-        List<CMSSignedData> signatures = new ArrayList<>();
+        return signatures.getSignatures();
+    }
+
+    private List<SignatureSummary> readSignatures() throws IOException {
+        List<SignatureSummary> signatures = new ArrayList<>();
 
         try {
             DocumentEntry digitalSignature = (DocumentEntry) fsRead.getRoot().getEntry(DIGITAL_SIGNATURE_ENTRY_NAME);
             if (digitalSignature != null) {
                 byte[] signatureBytes = IOUtils.toByteArray(new DocumentInputStream(digitalSignature));
                 try {
-                    CMSSignedData signedData = new CMSSignedData((CMSProcessable) null, ContentInfo.getInstance(new ASN1InputStream(signatureBytes).readObject()));
-                    signatures.add(signedData);
-
-                    // look for nested signatures
-                    SignerInformation signerInformation = signedData.getSignerInfos().getSigners().iterator().next();
-                    AttributeTable unsignedAttributes = signerInformation.getUnsignedAttributes();
-                    if (unsignedAttributes != null) {
-                        Attribute nestedSignatures = unsignedAttributes.get(AuthenticodeObjectIdentifiers.SPC_NESTED_SIGNATURE_OBJID);
-                        if (nestedSignatures != null) {
-                            for (ASN1Encodable nestedSignature : nestedSignatures.getAttrValues()) {
-                                signatures.add(new CMSSignedData((CMSProcessable) null, ContentInfo.getInstance(nestedSignature)));
-                            }
-                        }
-                    }
+                    signatures.add(SignatureSummary.parse(signatureBytes));
                 } catch (UnsupportedOperationException e) {
                     // unsupported type, just skip
                 } catch (Exception e) {
@@ -254,16 +289,23 @@ public class MSIFile implements Signable, Closeable {
     @Override
     public void setSignature(CMSSignedData signature) throws IOException {
         byte[] signatureBytes = signature.toASN1Structure().getEncoded("DER");
-        fsWrite.getRoot().createOrUpdateDocument(DIGITAL_SIGNATURE_ENTRY_NAME, new ByteArrayInputStream(signatureBytes));
+        getWritableFileSystem().getRoot().createOrUpdateDocument(DIGITAL_SIGNATURE_ENTRY_NAME, new ByteArrayInputStream(signatureBytes));
+        signatures.reset();
     }
 
     @Override
     public void save() throws IOException {
+        if (fsWrite == null) {
+            // nothing was modified
+            return;
+        }
+
         if (channel == null) {
             fsWrite.writeFilesystem();
         } else {
+            // only the sectors modified are written back to the channel
             channel.position(0);
-            fsWrite.writeFilesystem(Channels.newOutputStream(channel));
+            fsWrite.writeFilesystem(new DifferentialOutputStream(channel));
             channel.truncate(channel.position());
         }
     }
@@ -26,6 +26,8 @@ import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
 
+import net.jsign.SignatureSummary;
+
 /**
  * Entry of the certificate table.
  * 
@@ -57,13 +59,7 @@ public class CertificateTableEntry {
     }
 
     public CMSSignedData getSignature() throws CMSException {
-        if (type != CertificateType.PKCS_SIGNED_DATA.getValue()) {
-            throw new UnsupportedOperationException("Unsupported certificate type: " + type);
-        }
-        
-        if (revision != 0x0200) {
-            throw new UnsupportedOperationException("Unsupported certificate revision: " + revision);
-        }
+        checkSupported();
         
         if (signature == null) {
             try {
@@ -76,6 +72,27 @@ public class CertificateTableEntry {
         return signature;
     }
 
+    /**
+     * Returns the signature of the entry without decoding it entirely.
+     * 
+     * @since 4.2
+     */
+    public SignatureSummary getSignatureSummary() throws IOException {
+        checkSupported();
+        
+        return SignatureSummary.parse(content);
+    }
+
+    private void checkSupported() {
+        if (type != CertificateType.PKCS_SIGNED_DATA.getValue()) {
+            throw new UnsupportedOperationException("Unsupported certificate type: " + type);
+        }
+        
+        if (revision != 0x0200) {
+            throw new UnsupportedOperationException("Unsupported certificate revision: " + revision);
+        }
+    }
+
     public void setSignature(CMSSignedData signature) throws IOException {
         this.signature = signature;
         byte[] content = signature.toASN1Structure().getEncoded("DER");
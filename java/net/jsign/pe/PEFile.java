@@ -23,42 +23,39 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
-import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1Object;
 import org.bouncycastle.asn1.DERNull;
-import org.bouncycastle.asn1.cms.Attribute;
-import org.bouncycastle.asn1.cms.AttributeTable;
-import org.bouncycastle.asn1.cms.ContentInfo;
-import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x509.DigestInfo;
-import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.cms.SignerInformation;
 
 import net.jsign.DigestAlgorithm;
 import net.jsign.Signable;
+import net.jsign.SignatureContainer;
+import net.jsign.SignatureSummary;
 import net.jsign.asn1.authenticode.AuthenticodeObjectIdentifiers;
 import net.jsign.asn1.authenticode.SpcAttributeTypeAndOptionalValue;
 import net.jsign.asn1.authenticode.SpcIndirectDataContent;
 import net.jsign.asn1.authenticode.SpcPeImageData;
 
-import static net.jsign.ChannelUtils.*;
-
 /**
  * Portable Executable File.
  * 
- * This class is thread safe.
+ * This class is thread safe. When the file is backed by a FileChannel the
+ * read operations use positional reads and can be performed concurrently,
+ * the write operations are serialized.
  * 
  * @see <a href="https://docs.microsoft.com/en-us/windows/win32/debug/pe-format">Microsoft PE and COFF Specification </a>
  * 
@@ -73,11 +70,29 @@ public class PEFile implements Signable, Closeable {
     private File file;
     final SeekableByteChannel channel;
 
-    /** Reusable buffer for reading bytes, words, dwords and qwords from the file */
-    private final ByteBuffer valueBuffer = ByteBuffer.allocate(8);
-    {
-        valueBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    }
+    /**
+     * Read-only snapshot of the headers and the section table. The values
+     * located in this area are read from memory without locking the file.
+     * The snapshot is replaced (never modified) when the headers are written.
+     */
+    private volatile ByteBuffer headers;
+
+    /** Number of write operations performed on the file */
+    private volatile int modifications;
+
+    /**
+     * Checksum of the image computed along with the last digest, excluding the
+     * certificate table and its entry in the data directory. It's used to derive
+     * the checksum of the file when the signature is written.
+     */
+    private PEImageChecksum imageChecksum;
+
+    /** The number of modifications and the size of the file when the image checksum was computed */
+    private int imageChecksumModifications;
+    private long imageChecksumSize;
+
+    /** The signatures of the file, decoded once until the file is modified */
+    private final SignatureContainer signatures = new SignatureContainer(this::readSignatures);
 
     /**
      * Tells if the specified file is a Portable Executable file.
@@ -128,19 +143,21 @@ public class PEFile implements Signable, Closeable {
         
         try {
             // DOS Header
-            read(0, 0, 2);
-            if (valueBuffer.get() != 'M' || valueBuffer.get() != 'Z') {
+            ByteBuffer buffer = read(0, 0, 2);
+            if (buffer.get() != 'M' || buffer.get() != 'Z') {
                 throw new IOException("DOS header signature not found");
             }
 
             // PE Header
-            read(0x3C, 0, 4);
-            peHeaderOffset = valueBuffer.getInt() & 0xFFFFFFFFL;
-            read(peHeaderOffset, 0, 4);
-            if (valueBuffer.get() != 'P' || valueBuffer.get() != 'E' || valueBuffer.get() != 0 || valueBuffer.get() != 0) {
+            buffer = read(0x3C, 0, 4);
+            peHeaderOffset = buffer.getInt() & 0xFFFFFFFFL;
+            buffer = read(peHeaderOffset, 0, 4);
+            if (buffer.get() != 'P' || buffer.get() != 'E' || buffer.get() != 0 || buffer.get() != 0) {
                 throw new IOException("PE signature not found as expected at offset 0x" + Long.toHexString(peHeaderOffset));
             }
 
+            headers = loadHeaders();
+
         } catch (IOException e) {
             channel.close();
             throw e;
@@ -159,54 +176,150 @@ public class PEFile implements Signable, Closeable {
         channel.close();
     }
 
-    synchronized int read(byte[] buffer, long base, int offset) {
+    /**
+     * Reads the headers and the section table in a single operation.
+     */
+    private ByteBuffer loadHeaders() throws IOException {
+        long optionalHeaderEnd = peHeaderOffset + 24 + getSizeOfOptionalHeader();
+        long dataDirectoryEnd = getDataDirectoryOffset() + 8L * (getNumberOfRvaAndSizes() & 0xFFFFFFFFL);
+        long sectionTableEnd = Math.max(optionalHeaderEnd, dataDirectoryEnd) + 40L * getNumberOfSections();
+        if (sectionTableEnd > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(sectionTableEnd, channel.size()));
+        readFully(buffer, 0);
+        buffer.flip();
+
+        return buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads a sequence of bytes from the file at the specified position.
+     * The position of the channel isn't used with a FileChannel, which allows
+     * concurrent reads. Other channels are read while holding the lock.
+     *
+     * @param buffer   the buffer receiving the bytes
+     * @param position the position in the file
+     * @return the number of bytes read, or -1 if the position is after the end of the file
+     */
+    private int read(ByteBuffer buffer, long position) throws IOException {
+        if (channel instanceof FileChannel) {
+            return ((FileChannel) channel).read(buffer, position);
+        }
+
+        synchronized (this) {
+            channel.position(position);
+            return channel.read(buffer);
+        }
+    }
+
+    /**
+     * Fills the buffer with the bytes at the specified position, or until the end of the file is reached.
+     */
+    private int readFully(ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int length = read(buffer, position + total);
+            if (length <= 0) {
+                break;
+            }
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the snapshot of the headers if it covers the specified area, or null otherwise.
+     */
+    private ByteBuffer headers(long position, int length) {
+        ByteBuffer headers = this.headers;
+        return headers != null && position >= 0 && position + length <= headers.limit() ? headers : null;
+    }
+
+    int read(byte[] buffer, long base, int offset) {
+        ByteBuffer headers = headers(base + offset, buffer.length);
+        if (headers != null) {
+            ByteBuffer view = headers.duplicate();
+            view.position((int) (base + offset));
+            view.get(buffer);
+            return buffer.length;
+        }
+
         try {
-            channel.position(base + offset);
-            return channel.read(ByteBuffer.wrap(buffer));
+            return readFully(ByteBuffer.wrap(buffer), base + offset);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void read(long base, int offset, int length) {
+    private ByteBuffer read(long base, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
         try {
-            valueBuffer.limit(length);
-            valueBuffer.clear();
-            channel.position(base + offset);
-            channel.read(valueBuffer);
-            valueBuffer.rewind();
+            readFully(buffer, base + offset);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        buffer.rewind();
+        return buffer;
     }
 
-    synchronized int read(long base, int offset) {
-        read(base, offset, 1);
-        return valueBuffer.get();
+    int read(long base, int offset) {
+        ByteBuffer headers = headers(base + offset, 1);
+        if (headers != null) {
+            return headers.get((int) (base + offset));
+        }
+
+        return read(base, offset, 1).get();
     }
 
-    synchronized int readWord(long base, int offset) {
-        read(base, offset, 2);
-        return valueBuffer.getShort() & 0xFFFF;
+    int readWord(long base, int offset) {
+        ByteBuffer headers = headers(base + offset, 2);
+        if (headers != null) {
+            return headers.getShort((int) (base + offset)) & 0xFFFF;
+        }
+
+        return read(base, offset, 2).getShort() & 0xFFFF;
     }
 
-    synchronized long readDWord(long base, int offset) {
-        read(base, offset, 4);
-        return valueBuffer.getInt() & 0xFFFFFFFFL;
+    long readDWord(long base, int offset) {
+        ByteBuffer headers = headers(base + offset, 4);
+        if (headers != null) {
+            return headers.getInt((int) (base + offset)) & 0xFFFFFFFFL;
+        }
+
+        return read(base, offset, 4).getInt() & 0xFFFFFFFFL;
     }
 
-    synchronized long readQWord(long base, int offset) {
-        read(base, offset, 8);
-        return valueBuffer.getLong();
+    long readQWord(long base, int offset) {
+        ByteBuffer headers = headers(base + offset, 8);
+        if (headers != null) {
+            return headers.getLong((int) (base + offset));
+        }
+
+        return read(base, offset, 8).getLong();
     }
 
     synchronized void write(long base, byte[] data) {
+        modifications++;
+        signatures.reset();
         try {
             channel.position(base);
             channel.write(ByteBuffer.wrap(data));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+
+        // refresh the snapshot of the headers if the data overlaps
+        ByteBuffer headers = this.headers;
+        if (headers != null && base < headers.limit()) {
+            ByteBuffer copy = ByteBuffer.allocate(headers.limit());
+            copy.put(headers.duplicate());
+            copy.position((int) base);
+            copy.put(data, 0, (int) Math.min(data.length, headers.limit() - base));
+            copy.rewind();
+            this.headers = copy.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
     }
 
     public MachineType getMachineType() {
@@ -502,18 +615,20 @@ public class PEFile implements Signable, Closeable {
      * 
      * @return the checksum of the image
      */
-    public synchronized long computeChecksum() {
+    public long computeChecksum() {
         PEImageChecksum checksum = new PEImageChecksum(peHeaderOffset + 88);
         
-        ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer b = ByteBuffer.allocateDirect(64 * 1024);
         
         try {
-            channel.position(0);
+            long position = 0;
             
             int len;
-            while ((len = channel.read(b)) > 0) {
+            while ((len = readFully(b, position)) > 0) {
                 b.flip();
-                checksum.update(b.array(), 0, len);
+                checksum.update(b);
+                b.clear();
+                position += len;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -523,16 +638,14 @@ public class PEFile implements Signable, Closeable {
     }
 
     public synchronized void updateChecksum() {
+        writeChecksum(computeChecksum());
+    }
+
+    private void writeChecksum(long checksum) {
         ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putInt((int) computeChecksum());
-        buffer.flip();
+        buffer.putInt((int) checksum);
 
-        try {
-            channel.position(peHeaderOffset + 88);
-            channel.write(buffer);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        write(peHeaderOffset + 88, buffer.array());
     }
 
     /**
@@ -650,6 +763,21 @@ public class PEFile implements Signable, Closeable {
      * @throws IOException if an I/O error occurs
      */
     public synchronized void writeDataDirectory(DataDirectoryType type, byte[] data) throws IOException {
+        writeDataDirectory(type, data, null);
+    }
+
+    /**
+     * Writes the data directory of the specified type and updates the checksum.
+     * 
+     * @param type          the type of the data directory
+     * @param data          the content of the data directory
+     * @param imageChecksum the checksum of the image excluding the certificate table
+     *                      and its directory entry, or null to compute the checksum
+     *                      of the whole file
+     */
+    private void writeDataDirectory(DataDirectoryType type, byte[] data, PEImageChecksum imageChecksum) throws IOException {
+        modifications++;
+        signatures.reset();
         DataDirectory directory = getDataDirectory(type);
         
         if (!directory.exists()) {
@@ -705,29 +833,53 @@ public class PEFile implements Signable, Closeable {
             }
         }
         
-        updateChecksum();
+        if (imageChecksum != null) {
+            // complete the checksum of the image with the new certificate table and its directory entry
+            byte[] entry = new byte[8];
+            read(entry, getDataDirectoryOffset(), 8 * DataDirectoryType.CERTIFICATE_TABLE.ordinal());
+            imageChecksum.update(entry, 0, entry.length);
+            imageChecksum.update(data, 0, data.length);
+            writeChecksum(imageChecksum.getValue(channel.size()));
+        } else {
+            updateChecksum();
+        }
     }
 
     @Override
-    public synchronized List<CMSSignedData> getSignatures() {
-        List<CMSSignedData> signatures = new ArrayList<>();
+    public List<CMSSignedData> getSignatures() {
+        try {
+            return signatures.getSignatures();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the summaries of the signatures of the file, each signature being
+     * followed by its nested signatures. The ASN.1 structures are only decoded
+     * when the properties of the signatures are accessed. The signatures are
+     * read once and kept until the file is modified.
+     * 
+     * @return the signatures of the file, including the nested signatures
+     * @since 4.2
+     */
+    public List<SignatureSummary> getSignatureSummaries() {
+        try {
+            return signatures.getSignatureSummaries();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the signatures of the certificate table, the entries with an unsupported type are skipped.
+     */
+    private List<SignatureSummary> readSignatures() {
+        List<SignatureSummary> signatures = new ArrayList<>();
         
         for (CertificateTableEntry entry : getCertificateTable()) {
             try {
-                CMSSignedData signedData = entry.getSignature();
-                signatures.add(signedData);
-                
-                // look for nested signatures
-                SignerInformation signerInformation = signedData.getSignerInfos().getSigners().iterator().next();
-                AttributeTable unsignedAttributes = signerInformation.getUnsignedAttributes();
-                if (unsignedAttributes != null) {
-                    Attribute nestedSignatures = unsignedAttributes.get(AuthenticodeObjectIdentifiers.SPC_NESTED_SIGNATURE_OBJID);
-                    if (nestedSignatures != null) {
-                        for (ASN1Encodable nestedSignature : nestedSignatures.getAttrValues()) {
-                            signatures.add(new CMSSignedData((CMSProcessable) null, ContentInfo.getInstance(nestedSignature)));
-                        }
-                    }
-                }
+                signatures.add(entry.getSignatureSummary());
             } catch (UnsupportedOperationException e) {
                 // unsupported type, just skip
             } catch (Exception e) {
@@ -739,7 +891,14 @@ public class PEFile implements Signable, Closeable {
     }
 
     @Override
-    public void setSignature(CMSSignedData signature) throws IOException {
+    public synchronized void setSignature(CMSSignedData signature) throws IOException {
+        // reuse the checksum computed with the digest if the file hasn't changed since
+        PEImageChecksum imageChecksum = null;
+        if (this.imageChecksum != null && imageChecksumModifications == modifications && imageChecksumSize == channel.size()) {
+            imageChecksum = this.imageChecksum;
+        }
+        this.imageChecksum = null;
+
         // pad the file before adding the certificate table
         DataDirectory certificateTable = getDataDirectory(DataDirectoryType.CERTIFICATE_TABLE);
         if (certificateTable == null || !certificateTable.exists()) {
@@ -747,29 +906,53 @@ public class PEFile implements Signable, Closeable {
         }
 
         CertificateTableEntry entry = new CertificateTableEntry(signature);
-        writeDataDirectory(DataDirectoryType.CERTIFICATE_TABLE, entry.toBytes());
+        writeDataDirectory(DataDirectoryType.CERTIFICATE_TABLE, entry.toBytes(), imageChecksum);
     }
 
-    private synchronized List<CertificateTableEntry> getCertificateTable() {
-        List<CertificateTableEntry> entries = new ArrayList<>();
+    /**
+     * Returns the entries of the certificate table. The entries are read
+     * one at a time during the iteration.
+     */
+    private Iterable<CertificateTableEntry> getCertificateTable() {
         DataDirectory certificateTable = getDataDirectory(DataDirectoryType.CERTIFICATE_TABLE);
+        if (certificateTable == null || !certificateTable.exists()) {
+            return Collections.emptyList();
+        }
+        
+        long start = certificateTable.getVirtualAddress();
+        long end = start + certificateTable.getSize();
         
-        if (certificateTable != null && certificateTable.exists()) {
-            long position = certificateTable.getVirtualAddress();
+        return () -> new Iterator<CertificateTableEntry>() {
+            private long position = start;
             
-            try {
-                entries.add(new CertificateTableEntry(this, position));
+            @Override
+            public boolean hasNext() {
+                if (position + 8 > end) {
+                    return false;
+                }
                 
-                // todo read the remaining entries (but Authenticode use only one, extra signatures are appended as a SPC_NESTED_SIGNATURE unauthenticated attribute)
-            } catch (Exception e) {
-                e.printStackTrace();
+                // stop at the first malformed entry
+                long size = readDWord(position, 0);
+                return size > 8 && position + size <= end;
             }
-        }
-        
-        return entries;
+            
+            @Override
+            public CertificateTableEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                
+                CertificateTableEntry entry = new CertificateTableEntry(PEFile.this, position);
+                
+                // the entries are aligned on 8 bytes
+                position += (entry.getSize() + 7) & ~7;
+                
+                return entry;
+            }
+        };
     }
 
-    public synchronized List<Section> getSections() {
+    public List<Section> getSections() {
         List<Section> sections = new ArrayList<>();
         int sectionTableOffset = getDataDirectoryOffset() + 8 * getNumberOfRvaAndSizes();
         
@@ -862,21 +1045,12 @@ public class PEFile implements Signable, Closeable {
         }
         out.println();
         
-        List<CMSSignedData> signatures = getSignatures();
+        List<SignatureSummary> signatures = getSignatureSummaries();
         if (!signatures.isEmpty()) {
             out.println("Signatures");
-            for (CMSSignedData signedData : signatures) {
-                SignerInformation signerInformation = signedData.getSignerInfos().getSigners().iterator().next();
-                X509CertificateHolder certificate = (X509CertificateHolder) signedData.getCertificates().getMatches(signerInformation.getSID()).iterator().next();
-                
-                String commonName = certificate.getSubject().getRDNs(X509ObjectIdentifiers.commonName)[0].getFirst().getValue().toString();
-                
-                AttributeTable unsignedAttributes = signerInformation.getUnsignedAttributes();
-                boolean timestamped = unsignedAttributes != null &&
-                           (unsignedAttributes.get(PKCSObjectIdentifiers.pkcs_9_at_counterSignature) != null
-                         || unsignedAttributes.get(AuthenticodeObjectIdentifiers.SPC_RFC3161_OBJID)  != null);
-                DigestAlgorithm algorithm = DigestAlgorithm.of(signerInformation.getDigestAlgorithmID().getAlgorithm());
-                out.println("  " + commonName + "  " + (algorithm != null ? "[" + algorithm.id + "]  " : "") + (timestamped ? "(timestamped)" : ""));
+            for (SignatureSummary signature : signatures) {
+                DigestAlgorithm algorithm = signature.getDigestAlgorithm();
+                out.println("  " + signature.getSignerCommonName() + "  " + (algorithm != null ? "[" + algorithm.id + "]  " : "") + (signature.isTimestamped() ? "(timestamped)" : ""));
             }
         }
     }
@@ -891,20 +1065,50 @@ public class PEFile implements Signable, Closeable {
      * @throws IOException if an I/O error occurs
      */
     @Override
-    public synchronized byte[] computeDigest(MessageDigest digest) throws IOException {
+    public byte[] computeDigest(MessageDigest digest) throws IOException {
+        return computeDigests(digest)[0];
+    }
+
+    /**
+     * Compute the digests of the file with several algorithms in a single
+     * pass over the file. The checksum of the image is computed at the same
+     * time and reused when the signature is written, unless the file is
+     * modified in the meantime.
+     * 
+     * @param digests the message digests to update
+     * @return the digests of the file, in the same order as the message digests
+     * @throws IOException if an I/O error occurs
+     * @since 4.2
+     */
+    @Override
+    public byte[][] computeDigests(MessageDigest... digests) throws IOException {
+        int modifications = this.modifications;
         long checksumLocation = peHeaderOffset + 88;
         
         DataDirectory certificateTable = getDataDirectory(DataDirectoryType.CERTIFICATE_TABLE);
+        boolean signed = certificateTable != null && certificateTable.exists();
+        long size = channel.size();
+        
+        // the checksum can only be computed along with the digest if the skipped areas are aligned on dwords
+        PEImageChecksum checksum = null;
+        if (peHeaderOffset % 4 == 0 && (!signed || certificateTable.getVirtualAddress() % 4 == 0 && certificateTable.getSize() % 4 == 0)) {
+            checksum = new PEImageChecksum(checksumLocation);
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
         
         // digest from the beginning to the checksum field (excluded)
-        updateDigest(channel, digest, 0, checksumLocation);
+        update(digests, checksum, buffer, 0, checksumLocation);
         
         // skip the checksum field
         long position = checksumLocation + 4;
+        if (checksum != null) {
+            checksum.update(new byte[4], 0, 4);
+        }
         
         // digest from the end of the checksum field to the beginning of the certificate table entry
         int certificateTableOffset = getDataDirectoryOffset() + 8 * DataDirectoryType.CERTIFICATE_TABLE.ordinal();
-        updateDigest(channel, digest, position, certificateTableOffset);
+        update(digests, checksum, buffer, position, certificateTableOffset);
         
         // skip the certificate entry
         position = certificateTableOffset + 8;
@@ -912,21 +1116,66 @@ public class PEFile implements Signable, Closeable {
         // todo digest the sections in ascending address order
         
         // digest from the end of the certificate table entry to the beginning of the certificate table
-        if (certificateTable != null && certificateTable.exists()) {
-            updateDigest(channel, digest, position, certificateTable.getVirtualAddress());
+        if (signed) {
+            update(digests, checksum, buffer, position, certificateTable.getVirtualAddress());
             position = certificateTable.getVirtualAddress() + certificateTable.getSize();
         }
         
         // digest from the end of the certificate table to the end of the file
-        updateDigest(channel, digest, position, channel.size());
+        update(digests, checksum, buffer, position, size);
         
-        if (certificateTable == null || !certificateTable.exists()) {
+        if (!signed) {
             // if the file has never been signed before, update the digest as if the file was padded on a 8 byte boundary
-            int paddingLength = (int) (8 - channel.size() % 8) % 8;
-            digest.update(new byte[paddingLength]);
+            int paddingLength = (int) (8 - size % 8) % 8;
+            for (MessageDigest digest : digests) {
+                digest.update(new byte[paddingLength]);
+            }
+        }
+        
+        if (checksum != null) {
+            synchronized (this) {
+                if (modifications == this.modifications) {
+                    imageChecksum = checksum;
+                    imageChecksumModifications = modifications;
+                    imageChecksumSize = size;
+                }
+            }
         }
+        
+        byte[][] results = new byte[digests.length][];
+        for (int i = 0; i < digests.length; i++) {
+            results[i] = digests[i].digest();
+        }
+        
+        return results;
+    }
 
-        return digest.digest();
+    /**
+     * Update the specified digests and checksum by reading the file from the
+     * start offset included to the end offset excluded.
+     */
+    private void update(MessageDigest[] digests, PEImageChecksum checksum, ByteBuffer buffer, long startOffset, long endOffset) throws IOException {
+        byte[] array = buffer.array();
+        
+        long position = startOffset;
+        while (position < endOffset) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), endOffset - position));
+            int length = readFully(buffer, position);
+            if (length <= 0) {
+                break;
+            }
+            
+            for (MessageDigest digest : digests) {
+                digest.update(array, 0, length);
+            }
+            
+            if (checksum != null) {
+                checksum.update(array, 0, length);
+            }
+            
+            position += length;
+        }
     }
 
     /**
@@ -942,8 +1191,23 @@ public class PEFile implements Signable, Closeable {
 
     @Override
     public ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm) throws IOException {
+        return createIndirectData(digestAlgorithm, computeDigest(digestAlgorithm));
+    }
+
+    @Override
+    public List<ASN1Object> createIndirectData(List<DigestAlgorithm> digestAlgorithms) throws IOException {
+        byte[][] digests = computeDigests(DigestAlgorithm.getMessageDigests(digestAlgorithms));
+
+        List<ASN1Object> indirectData = new ArrayList<>();
+        for (int i = 0; i < digests.length; i++) {
+            indirectData.add(createIndirectData(digestAlgorithms.get(i), digests[i]));
+        }
+        return indirectData;
+    }
+
+    private ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm, byte[] digest) {
         AlgorithmIdentifier algorithmIdentifier = new AlgorithmIdentifier(digestAlgorithm.oid, DERNull.INSTANCE);
-        DigestInfo digestInfo = new DigestInfo(algorithmIdentifier, computeDigest(digestAlgorithm));
+        DigestInfo digestInfo = new DigestInfo(algorithmIdentifier, digest);
         SpcAttributeTypeAndOptionalValue data = new SpcAttributeTypeAndOptionalValue(AuthenticodeObjectIdentifiers.SPC_PE_IMAGE_DATA_OBJID, new SpcPeImageData());
 
         return new SpcIndirectDataContent(data, digestInfo);
@@ -956,6 +1220,7 @@ public class PEFile implements Signable, Closeable {
      * @throws IOException if an I/O error occurs
      */
     public synchronized void pad(int multiple) throws IOException {
+        modifications++;
         long padding = (multiple - channel.size() % multiple) % multiple;
         channel.position(channel.size());
         channel.write(ByteBuffer.allocate((int) padding));
@@ -16,12 +16,19 @@
 
 package net.jsign.pe;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.zip.Checksum;
 
 /**
  * Compute the checksum of a portable executable similarly to the checksum
  * function implemented into IMAGHELP.DLL. The checksum can only be updated
- * with buffers with a size that is a multiple of 4.
+ * with buffers with a size that is a multiple of 4, except for the last one
+ * which is padded with zeros.
+ * 
+ * <p>The dwords are summed in a 64 bits accumulator and folded into 32 bits
+ * only once per buffer. Since the folding preserves the value of the sum
+ * modulo 0xFFFF, this gives the same result as folding after each addition.</p>
  * 
  * @see <a href="https://docs.microsoft.com/en-us/windows/win32/debug/imagehlp-functions">ImageHlp Functions</a>
  * @see <a href="http://www.codeproject.com/KB/cpp/PEChecksum.aspx">An Analysis of the Windows PE Checksum Algorithm</a>
@@ -31,8 +38,6 @@ import java.util.zip.Checksum;
  */
 class PEImageChecksum implements Checksum {
 
-    private static final long MAX_UNSIGNED_INT = 0x100000000L;
-
     /** The checksum being computed */
     private long checksum;
 
@@ -54,33 +59,89 @@ class PEImageChecksum implements Checksum {
     }
 
     public void update(byte[] buffer, int offset, int length) {
-        long checksum = this.checksum;
+        update(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of the buffer. Heap and
+     * direct buffers are supported. Upon return the position of the buffer
+     * is equal to its limit.
+     * 
+     * @param buffer the buffer holding the data
+     */
+    @Override
+    public void update(ByteBuffer buffer) {
+        ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int length = data.remaining();
         
-        for (int i = offset; i < offset + length; i += 4) {
-            if (!checksumOffsetSkipped && position + i == checksumOffset) {
-                // skip the checksum field
-                checksumOffsetSkipped = true;
-            } else {
-                long dword = (buffer[i] & 0xFF) +
-                        ((buffer[i + 1] & 0xFF) << 8) +
-                        ((buffer[i + 2] & 0xFF) << 16) +
-                        ((buffer[i + 3] & 0xFFL) << 24);
-                
-                checksum += dword;
-                
-                if (checksum > MAX_UNSIGNED_INT) {
-                    // fold into 32 bits
-                    checksum = (checksum & 0xFFFFFFFFL) + (checksum >> 32);
-                }
-            }
+        long sum;
+        long skipped = checksumOffset - position;
+        if (!checksumOffsetSkipped && skipped >= 0 && skipped < length && skipped % 4 == 0) {
+            // skip the checksum field
+            checksumOffsetSkipped = true;
+            sum = sum(data, 0, (int) skipped) + sum(data, (int) skipped + 4, length);
+        } else {
+            sum = sum(data, 0, length);
         }
         
-        this.checksum = checksum;
+        checksum = fold(checksum + sum);
+        position += length;
         
-        position += length - offset;
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Sums the little endian dwords in the specified range of the buffer.
+     * The dwords are read two at a time, the trailing bytes are padded with zeros.
+     */
+    private static long sum(ByteBuffer data, int start, int end) {
+        long sum = 0;
+        int i = start;
+        
+        for (; i + 8 <= end; i += 8) {
+            long qword = data.getLong(i);
+            sum += (qword & 0xFFFFFFFFL) + (qword >>> 32);
+        }
+        
+        if (i + 4 <= end) {
+            sum += data.getInt(i) & 0xFFFFFFFFL;
+            i += 4;
+        }
+        
+        if (i < end) {
+            long dword = 0;
+            for (int shift = 0; i < end; i++, shift += 8) {
+                dword |= (data.get(i) & 0xFFL) << shift;
+            }
+            sum += dword;
+        }
+        
+        return sum;
+    }
+
+    /**
+     * Folds the specified value into 32 bits.
+     */
+    private static long fold(long value) {
+        while ((value >>> 32) != 0) {
+            value = (value & 0xFFFFFFFFL) + (value >>> 32);
+        }
+        return value;
     }
 
     public long getValue() {
+        return getValue(position);
+    }
+
+    /**
+     * Returns the checksum of a file with the specified length. The data not
+     * passed to the checksum is assumed to be zeros. This is used when the
+     * checksum is updated with the parts of the file out of order.
+     * 
+     * @param length the length of the file
+     * @return the checksum
+     */
+    long getValue(long length) {
         long checksum = this.checksum;
         
         // fold twice into 16 bits
@@ -88,7 +149,7 @@ class PEImageChecksum implements Checksum {
         checksum = (checksum >> 16) + checksum;
                 
         // keep the lower 16 bits and add the file length
-        return (checksum & 0xFFFF) + position;
+        return (checksum & 0xFFFF) + length;
     }
 
     public void reset() {
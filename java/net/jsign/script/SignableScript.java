@@ -22,14 +22,23 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.io.ByteOrderMark;
 import org.apache.commons.io.IOUtils;
@@ -43,13 +52,12 @@ import org.bouncycastle.asn1.cms.AttributeTable;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x509.DigestInfo;
-import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.cms.SignerInformation;
 
 import net.jsign.DigestAlgorithm;
 import net.jsign.Signable;
+import net.jsign.SignatureContainer;
+import net.jsign.SignatureSummary;
 import net.jsign.asn1.authenticode.AuthenticodeObjectIdentifiers;
 import net.jsign.asn1.authenticode.SpcAttributeTypeAndOptionalValue;
 import net.jsign.asn1.authenticode.SpcIndirectDataContent;
@@ -66,11 +74,20 @@ import static java.nio.charset.StandardCharsets.*;
  */
 abstract class SignableScript implements Signable {
 
+    /** The number of characters encoded at once when the script is digested or saved */
+    private static final int ENCODING_CHUNK_SIZE = 8192;
+
+    /** The signature block locators, indexed by type of script */
+    private static final Map<Class<?>, SignatureBlockLocator> LOCATORS = new ConcurrentHashMap<>();
+
     private File file;
     private String content;
     private Charset encoding;
     private byte[] bom;
 
+    /** The signatures of the script, decoded once until the content is modified */
+    private final SignatureContainer signatures = new SignatureContainer(this::readSignatures);
+
     /**
      * Create a script.
      * The encoding is assumed to be UTF-8.
@@ -145,6 +162,7 @@ abstract class SignableScript implements Signable {
      */
     public void setContent(String content) {
         this.content = content;
+        signatures.reset();
     }
 
     abstract String getSignatureStart();
@@ -157,43 +175,27 @@ abstract class SignableScript implements Signable {
 
     abstract ASN1Object getSpcSipInfo();
 
-    private Pattern getSignatureBlockPattern() {
-        return Pattern.compile("(?s)" +
-                "\\r\\n" +
-                getSignatureStart() + "\\r\\n" +
-                "(?<signatureBlock>.*)" +
-                getSignatureEnd() + "\\r\\n");
-    }
-
-    /** Pattern for removing signatures, even if the file EOL was converted to LF */
-    private Pattern getSignatureBlockRemovalPattern() {
-        return Pattern.compile("(?s)" +
-                "\\r?\\n" +
-                getSignatureStart() + "\\r?\\n" +
-                ".*" +
-                getSignatureEnd() + "\\r?\\n");
+    /**
+     * Returns the locator of the signature block, shared by all the scripts of the same type.
+     */
+    private SignatureBlockLocator getSignatureBlockLocator() {
+        return LOCATORS.computeIfAbsent(getClass(), type -> new SignatureBlockLocator(getSignatureStart(), getSignatureEnd()));
     }
 
     @Override
     public List<CMSSignedData> getSignatures() {
-        List<CMSSignedData> signatures = new ArrayList<>();
-        
         try {
-            CMSSignedData signedData = decodeSignatureBlock();
-            if (signedData != null) {
-                signatures.add(signedData);
-
-                // look for nested signatures
-                SignerInformation signerInformation = signedData.getSignerInfos().getSigners().iterator().next();
-                AttributeTable unsignedAttributes = signerInformation.getUnsignedAttributes();
-                if (unsignedAttributes != null) {
-                    Attribute nestedSignatures = unsignedAttributes.get(AuthenticodeObjectIdentifiers.SPC_NESTED_SIGNATURE_OBJID);
-                    if (nestedSignatures != null) {
-                        for (ASN1Encodable nestedSignature : nestedSignatures.getAttrValues()) {
-                            signatures.add(new CMSSignedData((CMSProcessable) null, ContentInfo.getInstance(nestedSignature)));
-                        }
-                    }
-                }
+            return signatures.getSignatures();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<SignatureSummary> readSignatures() {
+        try {
+            SignatureSummary signature = decodeSignatureBlock();
+            if (signature != null) {
+                return Collections.singletonList(signature);
             }
         } catch (UnsupportedOperationException e) {
             // unsupported type, just skip
@@ -201,7 +203,7 @@ abstract class SignableScript implements Signable {
             e.printStackTrace();
         }
         
-        return signatures;
+        return Collections.emptyList();
     }
 
     /**
@@ -210,15 +212,15 @@ abstract class SignableScript implements Signable {
      * @return the signature block
      */
     private String getSignatureBlock() {
-        Matcher matcher = getSignatureBlockPattern().matcher(getContent());
-        if (!matcher.find()) {
+        Matcher matcher = getSignatureBlockLocator().find(getContent());
+        if (matcher == null) {
             return null;
         }
         
         return matcher.group("signatureBlock");
     }
 
-    private CMSSignedData decodeSignatureBlock() throws CMSException {
+    private SignatureSummary decodeSignatureBlock() throws IOException {
         String signatureBlock = getSignatureBlock();
         if (signatureBlock == null) {
             return null;
@@ -230,11 +232,7 @@ abstract class SignableScript implements Signable {
 
         byte[] signatureBytes = Base64.getDecoder().decode(signatureBlock);
 
-        try {
-            return new CMSSignedData((CMSProcessable) null, ContentInfo.getInstance(new ASN1InputStream(signatureBytes).readObject()));
-        } catch (IOException e) {
-            throw new IllegalArgumentException("Failed to construct ContentInfo from byte[]: ", e);
-        }
+        return SignatureSummary.parse(signatureBytes);
     }
 
     @Override
@@ -242,8 +240,14 @@ abstract class SignableScript implements Signable {
         // build the signed script content
         String content = getContentWithoutSignatureBlock();
         int pos = getSignatureInsertionPoint(content);
-        
-        this.content = content.substring(0, pos) + createSignatureBlock(signature) + content.substring(pos);
+        String signatureBlock = createSignatureBlock(signature);
+
+        this.content = new StringBuilder(content.length() + signatureBlock.length())
+                .append(content, 0, pos)
+                .append(signatureBlock)
+                .append(content, pos, content.length())
+                .toString();
+        signatures.reset();
     }
 
     private String createSignatureBlock(CMSSignedData signature) throws IOException {
@@ -265,29 +269,194 @@ abstract class SignableScript implements Signable {
         return signatureBlock.toString();
     }
 
-    protected int getSignatureInsertionPoint(String content) {
+    protected int getSignatureInsertionPoint(CharSequence content) {
         return content.length();
     }
 
+    /**
+     * Returns the insertion point of the signature block in the content stripped
+     * from the signature block, without copying the content.
+     */
+    int getSignatureInsertionPointWithoutSignatureBlock() {
+        return getSignatureInsertionPoint(new ContentRanges(getContent(), getRangesWithoutSignatureBlock()));
+    }
+
     /**
      * Returns the content stripped from the signature block.
      * 
      * @return the content without the signature
      */
     protected String getContentWithoutSignatureBlock() {
-        return getSignatureBlockRemovalPattern().matcher(getContent()).replaceFirst("");
+        String content = getContent();
+        Matcher matcher = getSignatureBlockLocator().findForRemoval(content);
+        if (matcher == null) {
+            return content;
+        }
+
+        return new StringBuilder(content.length() - (matcher.end() - matcher.start()))
+                .append(content, 0, matcher.start())
+                .append(content, matcher.end(), content.length())
+                .toString();
+    }
+
+    /**
+     * Returns the ranges of the content outside of the signature block.
+     */
+    private int[] getRangesWithoutSignatureBlock() {
+        String content = getContent();
+        Matcher matcher = getSignatureBlockLocator().findForRemoval(content);
+        if (matcher != null) {
+            return new int[] { 0, matcher.start(), matcher.end(), content.length() };
+        } else {
+            return new int[] { 0, content.length() };
+        }
+    }
+
+    /**
+     * View of the ranges of a text as a contiguous sequence of characters.
+     */
+    private static class ContentRanges implements CharSequence {
+
+        private final String content;
+
+        /** The start (inclusive) and end (exclusive) of each range */
+        private final int[] ranges;
+
+        private final int length;
+
+        ContentRanges(String content, int[] ranges) {
+            this.content = content;
+            this.ranges = ranges;
+            int length = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                length += ranges[i + 1] - ranges[i];
+            }
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+            }
+            for (int i = 0; i < ranges.length; i += 2) {
+                int size = ranges[i + 1] - ranges[i];
+                if (index < size) {
+                    return content.charAt(ranges[i] + index);
+                }
+                index -= size;
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new StringBuilder(end - start).append(this, start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(length).append(this).toString();
+        }
+    }
+
+    /**
+     * Encodes the specified ranges of the content by chunks and writes the bytes
+     * to the output stream. Unlike String.getBytes() this doesn't copy the whole
+     * content, and the malformed or unmappable characters are replaced the same way.
+     *
+     * @param content the text to encode
+     * @param ranges  the start (inclusive) and end (exclusive) of each range to encode
+     * @param charset the charset used for encoding the content
+     * @param out     the stream receiving the encoded content
+     */
+    private static void encode(String content, int[] ranges, Charset charset, OutputStream out) throws IOException {
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer in = CharBuffer.allocate(ENCODING_CHUNK_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate((int) ceil(ENCODING_CHUNK_SIZE * encoder.maxBytesPerChar()));
+
+        for (int i = 0; i < ranges.length; i += 2) {
+            int position = ranges[i];
+            int end = ranges[i + 1];
+            while (position < end) {
+                int length = min(in.remaining(), end - position);
+                content.getChars(position, position + length, in.array(), in.position());
+                in.position(in.position() + length);
+                position += length;
+
+                // the characters left (the first half of a surrogate pair) are encoded with the next chunk
+                in.flip();
+                encode(encoder, in, buffer, false, out);
+                in.compact();
+            }
+        }
+
+        in.flip();
+        encode(encoder, in, buffer, true, out);
+        while (encoder.flush(buffer).isOverflow()) {
+            write(buffer, out);
+        }
+        write(buffer, out);
+    }
+
+    private static void encode(CharsetEncoder encoder, CharBuffer in, ByteBuffer buffer, boolean endOfInput, OutputStream out) throws IOException {
+        while (encoder.encode(in, buffer, endOfInput).isOverflow()) {
+            write(buffer, out);
+        }
+        write(buffer, out);
+    }
+
+    private static void write(ByteBuffer buffer, OutputStream out) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * Updates the digest with the content of the script encoded in UTF-16LE,
+     * excluding the signature block.
+     *
+     * @param digest the message digest to update
+     */
+    void updateDigest(MessageDigest digest) {
+        try {
+            encode(getContent(), getRangesWithoutSignatureBlock(), UTF_16LE, new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
     public byte[] computeDigest(MessageDigest digest) {
-        digest.update(getContentWithoutSignatureBlock().getBytes(UTF_16LE));
+        updateDigest(digest);
         return digest.digest();
     }
 
     @Override
     public ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm) {
+        return createIndirectData(digestAlgorithm, computeDigest(digestAlgorithm.getMessageDigest()));
+    }
+
+    @Override
+    public List<ASN1Object> createIndirectData(List<DigestAlgorithm> digestAlgorithms) throws IOException {
+        byte[][] digests = computeDigests(DigestAlgorithm.getMessageDigests(digestAlgorithms));
+
+        List<ASN1Object> indirectData = new ArrayList<>();
+        for (int i = 0; i < digests.length; i++) {
+            indirectData.add(createIndirectData(digestAlgorithms.get(i), digests[i]));
+        }
+        return indirectData;
+    }
+
+    private ASN1Object createIndirectData(DigestAlgorithm digestAlgorithm, byte[] digest) {
         AlgorithmIdentifier algorithmIdentifier = new AlgorithmIdentifier(digestAlgorithm.oid, DERNull.INSTANCE);
-        DigestInfo digestInfo = new DigestInfo(algorithmIdentifier, computeDigest(digestAlgorithm.getMessageDigest()));
+        DigestInfo digestInfo = new DigestInfo(algorithmIdentifier, digest);
         
         SpcAttributeTypeAndOptionalValue data = new SpcAttributeTypeAndOptionalValue(AuthenticodeObjectIdentifiers.SPC_SIPINFO_OBJID, getSpcSipInfo());
         
@@ -312,7 +481,8 @@ abstract class SignableScript implements Signable {
             if (bom != null) {
                 out.write(bom);
             }
-            out.write(getContent().getBytes(encoding));
+            String content = getContent();
+            encode(content, new int[] { 0, content.length() }, encoding, out);
             out.flush();
         }
     }
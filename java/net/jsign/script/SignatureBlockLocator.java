@@ -0,0 +1,89 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign.script;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Locates the signature block of a script. The signature block being at the
+ * end of the script, the search starts from the last occurrence of the start
+ * marker instead of scanning the whole content with a regular expression.
+ *
+ * @since 4.2
+ */
+class SignatureBlockLocator {
+
+    /** The first line of the signature block */
+    private final String signatureStart;
+
+    /** Pattern matching the signature block with the CRLF line endings */
+    private final Pattern signatureBlockPattern;
+
+    /** Pattern matching the signature block even if the file EOL was converted to LF */
+    private final Pattern signatureBlockRemovalPattern;
+
+    SignatureBlockLocator(String signatureStart, String signatureEnd) {
+        this.signatureStart = signatureStart;
+        this.signatureBlockPattern = Pattern.compile("(?s)" +
+                "\\r\\n" +
+                Pattern.quote(signatureStart) + "\\r\\n" +
+                "(?<signatureBlock>.*)" +
+                Pattern.quote(signatureEnd) + "\\r\\n");
+        this.signatureBlockRemovalPattern = Pattern.compile("(?s)" +
+                "\\r?\\n" +
+                Pattern.quote(signatureStart) + "\\r?\\n" +
+                ".*" +
+                Pattern.quote(signatureEnd) + "\\r?\\n");
+    }
+
+    /**
+     * Finds the signature block with the CRLF line endings. The content of the
+     * block is captured in the <code>signatureBlock</code> group of the matcher.
+     *
+     * @param content the content of the script
+     * @return the matcher positioned on the signature block, or <code>null</code> if there is no signature block
+     */
+    Matcher find(String content) {
+        return find(signatureBlockPattern, content);
+    }
+
+    /**
+     * Finds the signature block to be removed, even if the line endings were converted to LF.
+     *
+     * @param content the content of the script
+     * @return the matcher positioned on the signature block, or <code>null</code> if there is no signature block
+     */
+    Matcher findForRemoval(String content) {
+        return find(signatureBlockRemovalPattern, content);
+    }
+
+    private Matcher find(Pattern pattern, String content) {
+        Matcher matcher = pattern.matcher(content);
+        for (int index = content.lastIndexOf(signatureStart); index > 0; index = content.lastIndexOf(signatureStart, index - 1)) {
+            // the block begins with the line break preceding the start marker (CRLF or LF)
+            for (int start = Math.max(0, index - 2); start < index; start++) {
+                matcher.region(start, content.length());
+                if (matcher.lookingAt()) {
+                    return matcher;
+                }
+            }
+        }
+
+        return null;
+    }
+}
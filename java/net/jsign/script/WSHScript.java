@@ -21,8 +21,6 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 
-import static java.nio.charset.StandardCharsets.*;
-
 /**
  * A Windows Script Host file (VB/JS/WSF).
  *
@@ -68,11 +66,10 @@ abstract class WSHScript extends SignableScript {
 
     @Override
     public byte[] computeDigest(MessageDigest digest) {
-        String content = getContentWithoutSignatureBlock();
-        digest.update(content.getBytes(UTF_16LE));
+        updateDigest(digest);
 
         // add the position of the signature block to the hash
-        int pos = getSignatureInsertionPoint(content);
+        int pos = getSignatureInsertionPointWithoutSignatureBlock();
         digest.update((byte) pos);
         digest.update((byte) (pos >>> 8));
         digest.update((byte) (pos >>> 16));
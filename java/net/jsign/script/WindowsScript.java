@@ -84,8 +84,18 @@ public class WindowsScript extends WSHScript {
     }
 
     @Override
-    protected int getSignatureInsertionPoint(String content) {
-        return content.lastIndexOf("</job>");
+    protected int getSignatureInsertionPoint(CharSequence content) {
+        String tag = "</job>";
+        for (int i = content.length() - tag.length(); i >= 0; i--) {
+            int j = 0;
+            while (j < tag.length() && content.charAt(i + j) == tag.charAt(j)) {
+                j++;
+            }
+            if (j == tag.length()) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     @Override
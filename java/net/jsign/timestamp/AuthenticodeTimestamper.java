@@ -16,10 +16,8 @@
 
 package net.jsign.timestamp;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.Collection;
 
 import org.bouncycastle.asn1.DERSet;
@@ -47,32 +45,19 @@ public class AuthenticodeTimestamper extends Timestamper {
     }
 
     protected CMSSignedData timestamp(DigestAlgorithm algo, byte[] encryptedDigest) throws IOException, TimestampingException {
+        return timestamp(algo, encryptedDigest, tsaurl);
+    }
+
+    @Override
+    protected CMSSignedData timestamp(DigestAlgorithm algo, byte[] encryptedDigest, URL tsaurl) throws IOException, TimestampingException {
         AuthenticodeTimeStampRequest timestampRequest = new AuthenticodeTimeStampRequest(encryptedDigest);
 
         byte[] request = Base64.encode(timestampRequest.getEncoded("DER"));
 
-        HttpURLConnection conn = (HttpURLConnection) tsaurl.openConnection();
-        conn.setConnectTimeout(10000);
-        conn.setReadTimeout(10000);
-        conn.setDoOutput(true);
-        conn.setDoInput(true);
-        conn.setUseCaches(false);
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-type", "application/octet-stream");
-        conn.setRequestProperty("Content-length", String.valueOf(request.length));
-        conn.setRequestProperty("Accept", "application/octet-stream");
-        conn.setRequestProperty("User-Agent", "Transport");
-
-        conn.getOutputStream().write(request);
-        conn.getOutputStream().flush();
-
-        if (conn.getResponseCode() >= 400) {
-            throw new IOException("Unable to complete the timestamping due to HTTP error: " + conn.getResponseCode() + " - " + conn.getResponseMessage());
-        }
+        byte[] response = post(tsaurl, request, "application/octet-stream", "application/octet-stream");
 
         try {
-            byte[] response = Base64.decode(toBytes(conn.getInputStream()));
-            return new CMSSignedData(response);
+            return new CMSSignedData(Base64.decode(response));
         } catch (Exception e) {
             throw new TimestampingException("Unable to complete the timestamping", e);
         }
@@ -90,16 +75,4 @@ public class AuthenticodeTimestamper extends Timestamper {
         
         return new AttributeTable(counterSignature);
     }
-
-    private byte[] toBytes(InputStream in) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-
-        byte[] buffer = new byte[4096];
-        int n;
-        while ((n = in.read(buffer)) != -1) {
-            bout.write(buffer, 0, n);
-        }
-        
-        return bout.toByteArray();
-    }
 }
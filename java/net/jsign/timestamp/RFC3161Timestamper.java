@@ -17,7 +17,7 @@
 package net.jsign.timestamp;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.net.URL;
 
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.DERSet;
@@ -46,39 +46,27 @@ public class RFC3161Timestamper extends Timestamper {
     }
 
     protected CMSSignedData timestamp(DigestAlgorithm algo, byte[] encryptedDigest) throws IOException, TimestampingException {
+        return timestamp(algo, encryptedDigest, tsaurl);
+    }
+
+    @Override
+    protected CMSSignedData timestamp(DigestAlgorithm algo, byte[] encryptedDigest, URL tsaurl) throws IOException, TimestampingException {
         TimeStampRequestGenerator reqgen = new TimeStampRequestGenerator();
         reqgen.setCertReq(true);
         TimeStampRequest req = reqgen.generate(algo.oid, algo.getMessageDigest().digest(encryptedDigest));
         byte[] request = req.getEncoded();
 
-        HttpURLConnection conn = (HttpURLConnection) tsaurl.openConnection();
-        conn.setConnectTimeout(10000);
-        conn.setReadTimeout(10000);
-        conn.setDoOutput(true);
-        conn.setDoInput(true);
-        conn.setUseCaches(false);
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-type", "application/timestamp-query");
-        conn.setRequestProperty("Content-length", String.valueOf(request.length));
-        conn.setRequestProperty("Accept", "application/timestamp-reply");
-        conn.setRequestProperty("User-Agent", "Transport");
-        
-        conn.getOutputStream().write(request);
-        conn.getOutputStream().flush();
-
-        if (conn.getResponseCode() >= 400) {
-            throw new IOException("Unable to complete the timestamping due to HTTP error: " + conn.getResponseCode() + " - " + conn.getResponseMessage());
-        }
+        byte[] response = post(tsaurl, request, "application/timestamp-query", "application/timestamp-reply");
 
         try {
-            TimeStampResp resp = TimeStampResp.getInstance(new ASN1InputStream(conn.getInputStream()).readObject());
-            TimeStampResponse response = new TimeStampResponse(resp);
-            response.validate(req);
-            if (response.getStatus() != 0) {
-                throw new IOException("Unable to complete the timestamping due to an invalid response (" + response.getStatusString() + ")");
+            TimeStampResp resp = TimeStampResp.getInstance(new ASN1InputStream(response).readObject());
+            TimeStampResponse timestampResponse = new TimeStampResponse(resp);
+            timestampResponse.validate(req);
+            if (timestampResponse.getStatus() != 0) {
+                throw new IOException("Unable to complete the timestamping due to an invalid response (" + timestampResponse.getStatusString() + ")");
             }
 
-            return response.getTimeStampToken().toCMSSignedData();
+            return timestampResponse.getTimeStampToken().toCMSSignedData();
 
         } catch (Exception e) {
             throw new TimestampingException("Unable to complete the timestamping", e);
@@ -18,10 +18,17 @@ package net.jsign.timestamp;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
@@ -36,6 +43,7 @@ import org.bouncycastle.util.CollectionStore;
 import org.bouncycastle.util.Store;
 
 import net.jsign.DigestAlgorithm;
+import net.jsign.HttpTransport;
 import net.jsign.asn1.authenticode.AuthenticodeSignedDataGenerator;
 
 /**
@@ -58,6 +66,9 @@ public abstract class Timestamper {
     /** Seconds to wait between retries */
     protected int retryWait = 10;
 
+    /** Timeout of the requests sent to the timestamping authorities */
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(20);
+
     /**
      * Set the URL of the timestamping service.
      *
@@ -114,34 +125,49 @@ public abstract class Timestamper {
      * @throws CMSException if the signature cannot be generated
      */
     public CMSSignedData timestamp(DigestAlgorithm algo, CMSSignedData sigData) throws TimestampingException, IOException, CMSException {
-        CMSSignedData token = null;
-        
-        // Retry the timestamping and failover other services if a TSA is unavailable for a short period of time
-        int attempts = Math.max(retries, tsaurls.size());
-        TimestampingException exception = new TimestampingException("Unable to complete the timestamping after " + attempts + " attempt" + (attempts > 1 ? "s" : ""));
-        int count = 0;
-        while (count < Math.max(retries, tsaurls.size())) {
-            try {
-                tsaurl = tsaurls.get(count % tsaurls.size());
-                token = timestamp(algo, getEncryptedDigest(sigData));
-                break;
-            } catch (TimestampingException | IOException e) {
-                exception.addSuppressed(e);
+        CMSSignedData token;
+        try {
+            token = requestTimestamp(algo, getEncryptedDigest(sigData), TimestampingRequest.EXECUTOR).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimestampingException) {
+                throw (TimestampingException) e.getCause();
             }
+            throw new TimestampingException("Unable to complete the timestamping", e.getCause());
+        }
+        
+        return modifySignedData(sigData, getUnsignedAttributes(token), getExtraCertificates(token));
+    }
 
-            // pause before the next attempt
+    /**
+     * Timestamp the specified signature asynchronously. The calling thread isn't
+     * blocked while waiting for the response or between the attempts.
+     *
+     * @param algo     the digest algorithm used for the timestamp
+     * @param sigData  the signed data to be timestamped
+     * @param executor the executor sending the timestamping requests
+     * @return the future completed with the signed data including the timestamp
+     * @since 4.2
+     */
+    public CompletableFuture<CMSSignedData> timestampAsync(DigestAlgorithm algo, CMSSignedData sigData, Executor executor) {
+        return requestTimestamp(algo, getEncryptedDigest(sigData), executor).thenApply(token -> {
             try {
-                Thread.sleep(retryWait * 1000L);
-                count++;
-            } catch (InterruptedException ie) {
+                return modifySignedData(sigData, getUnsignedAttributes(token), getExtraCertificates(token));
+            } catch (IOException | CMSException e) {
+                throw new CompletionException(e);
             }
-        }
-        
-        if (token == null) {
-            throw exception;
-        }
+        });
+    }
+
+    /**
+     * Request a timestamp token. The timestamping is retried and fails over the
+     * other services if a TSA is unavailable for a short period of time.
+     */
+    private CompletableFuture<CMSSignedData> requestTimestamp(DigestAlgorithm algo, byte[] encryptedDigest, Executor executor) {
+        List<URL> urls = TimestampingAuthority.sort(tsaurls);
+        int attempts = Math.max(retries, urls.size());
+        TimestampingRequest<CMSSignedData> request = new TimestampingRequest<>(urls, attempts, retryWait * 1000L, url -> timestamp(algo, encryptedDigest, url), executor);
         
-        return modifySignedData(sigData, getUnsignedAttributes(token), getExtraCertificates(token));
+        return request.send();
     }
 
     /**
@@ -197,6 +223,63 @@ public abstract class Timestamper {
 
     protected abstract CMSSignedData timestamp(DigestAlgorithm algo, byte[] encryptedDigest) throws IOException, TimestampingException;
 
+    /**
+     * Request a timestamp to the specified authority. The default implementation
+     * sets the current URL and delegates to {@link #timestamp(DigestAlgorithm, byte[])},
+     * the requests are thus sent one at a time. The subclasses not relying
+     * on the <code>tsaurl</code> field should override this method to allow
+     * concurrent requests.
+     *
+     * @param algo            the digest algorithm used for the timestamp
+     * @param encryptedDigest the encrypted digest of the signature to be timestamped
+     * @param tsaurl          the URL of the timestamping authority
+     * @return the timestamp token
+     * @throws IOException if an I/O error occurs
+     * @throws TimestampingException if the timestamping authority returned an invalid response
+     * @since 4.2
+     */
+    protected CMSSignedData timestamp(DigestAlgorithm algo, byte[] encryptedDigest, URL tsaurl) throws IOException, TimestampingException {
+        synchronized (this) {
+            this.tsaurl = tsaurl;
+            return timestamp(algo, encryptedDigest);
+        }
+    }
+
+    /**
+     * Sends a timestamping request to the specified authority. The requests
+     * are sent with the shared HTTP transport, the connections to the
+     * authorities are thus kept alive and reused by the next requests.
+     *
+     * @param tsaurl      the URL of the timestamping authority
+     * @param request     the encoded timestamping request
+     * @param contentType the content type of the request
+     * @param accept      the content type expected for the response
+     * @return the body of the response
+     * @throws IOException if an I/O error occurs or if the authority returned an HTTP error
+     * @since 4.2
+     */
+    byte[] post(URL tsaurl, byte[] request, String contentType, String accept) throws IOException {
+        HttpTransport transport = HttpTransport.getDefault();
+        HttpRequest.Builder builder;
+        try {
+            builder = transport.newRequest(tsaurl.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid timestamping URL: " + tsaurl, e);
+        }
+        builder.timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", contentType)
+                .header("Accept", accept)
+                .header("User-Agent", "Transport")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(request));
+
+        HttpResponse<byte[]> response = transport.send(builder.build());
+        if (response.statusCode() >= 400) {
+            throw new IOException("Unable to complete the timestamping due to HTTP error: " + response.statusCode());
+        }
+
+        return response.body();
+    }
+
     /**
      * Returns the timestamper for the specified mode.
      * 
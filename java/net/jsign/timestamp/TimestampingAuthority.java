@@ -0,0 +1,224 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign.timestamp;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the requests sent to a timestamping authority. The authorities are
+ * shared by all the timestampers, this limits the number of concurrent requests
+ * sent to the same server when many files are signed in parallel (the extra
+ * requests are queued without holding a thread until a request completes), records
+ * the response time of the servers to prefer the fastest healthy authority,
+ * and skips for a while the authorities failing repeatedly.
+ *
+ * @since 4.2
+ */
+class TimestampingAuthority {
+
+    /** The maximum number of requests sent concurrently to the same authority */
+    static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    /** The number of consecutive failures making the authority unavailable */
+    private static final int FAILURE_THRESHOLD = 3;
+
+    /** The time an authority stays unavailable after repeated failures (in nanoseconds) */
+    private static final long UNAVAILABILITY_PERIOD = TimeUnit.SECONDS.toNanos(30);
+
+    /** The number of response times kept to compute the hedging delay */
+    private static final int LATENCY_SAMPLES = 32;
+
+    /** The authorities indexed by URL */
+    private static final Map<String, TimestampingAuthority> AUTHORITIES = new ConcurrentHashMap<>();
+
+    /** The number of requests in progress */
+    private int activeRequests;
+
+    /** The requests waiting for the completion of a request in progress */
+    private final Queue<Runnable> queuedRequests = new ArrayDeque<>();
+
+    /** The moving average of the response time in nanoseconds (0 if unknown) */
+    private long averageLatency;
+
+    /** The number of requests that failed since the last successful request */
+    private int consecutiveFailures;
+
+    /** The time until the authority is considered unavailable (System.nanoTime() value) */
+    private long unavailableUntil;
+
+    /** The last response times in nanoseconds */
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+
+    /** The number of response times recorded */
+    private int latencyCount;
+
+    /**
+     * A request sent to a timestamping authority.
+     */
+    interface Request<T> {
+        T send() throws IOException, TimestampingException;
+    }
+
+    /**
+     * Returns the authority with the specified URL.
+     */
+    static TimestampingAuthority get(URL url) {
+        return AUTHORITIES.computeIfAbsent(url.toString(), key -> new TimestampingAuthority());
+    }
+
+    /**
+     * Sorts the specified URLs by order of preference: the healthy authorities
+     * first, sorted by response time. The authorities never queried are tried
+     * first to measure their response time, and the order of the URLs is kept
+     * for the authorities with the same preference.
+     *
+     * @param urls the URLs of the timestamping authorities
+     * @return the URLs sorted by order of preference
+     */
+    static List<URL> sort(List<URL> urls) {
+        List<URL> sorted = new ArrayList<>(urls);
+        sorted.sort(Comparator.comparing((URL url) -> !get(url).isAvailable())
+                .thenComparing(url -> !get(url).isHealthy())
+                .thenComparingLong(url -> get(url).getAverageLatency()));
+        return sorted;
+    }
+
+    /**
+     * Sends the specified request with the executor, and records its response time.
+     * If too many requests are already in progress the request is queued and sent
+     * when one of them completes.
+     *
+     * @return the future completed with the response
+     */
+    <T> CompletableFuture<T> send(Request<T> request, Executor executor) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                executor.execute(() -> {
+                    try {
+                        long start = System.nanoTime();
+                        T response = request.send();
+                        success(System.nanoTime() - start);
+                        result.complete(response);
+                    } catch (IOException | RuntimeException e) {
+                        failure();
+                        result.completeExceptionally(e);
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    } finally {
+                        release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+                release();
+            }
+        };
+
+        synchronized (this) {
+            if (activeRequests >= MAX_CONCURRENT_REQUESTS) {
+                queuedRequests.add(task);
+                return result;
+            }
+            activeRequests++;
+        }
+
+        task.run();
+        return result;
+    }
+
+    /**
+     * Sends the next queued request, or frees a slot for the next request if none is waiting.
+     */
+    private void release() {
+        Runnable next;
+        synchronized (this) {
+            next = queuedRequests.poll();
+            if (next == null) {
+                activeRequests--;
+            }
+        }
+
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    synchronized long getAverageLatency() {
+        return averageLatency;
+    }
+
+    synchronized boolean isHealthy() {
+        return consecutiveFailures == 0;
+    }
+
+    /**
+     * Tells if the authority can be queried. An authority failing repeatedly is
+     * unavailable for a while, and then queried again to check if it recovered.
+     */
+    synchronized boolean isAvailable() {
+        return consecutiveFailures < FAILURE_THRESHOLD || System.nanoTime() - unavailableUntil >= 0;
+    }
+
+    /**
+     * Returns the time after which a request to this authority is considered
+     * slow and a hedged request should be sent to another authority. This is
+     * the 90th percentile of the last response times, or 0 if not enough
+     * requests were sent to estimate it.
+     *
+     * @return the hedging delay in nanoseconds
+     */
+    synchronized long getHedgingDelay() {
+        int count = Math.min(latencyCount, LATENCY_SAMPLES);
+        if (count < LATENCY_SAMPLES / 4) {
+            return 0;
+        }
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return sorted[(count * 9) / 10];
+    }
+
+    private synchronized void success(long latency) {
+        averageLatency = averageLatency == 0 ? latency : (7 * averageLatency + latency) / 8;
+        latencies[latencyCount++ % LATENCY_SAMPLES] = latency;
+        if (latencyCount == 2 * LATENCY_SAMPLES) {
+            latencyCount = LATENCY_SAMPLES;
+        }
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void failure() {
+        consecutiveFailures++;
+        if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            unavailableUntil = System.nanoTime() + UNAVAILABILITY_PERIOD;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2022 Emmanuel Bourg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.jsign.timestamp;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timestamping request failing over the configured authorities without blocking
+ * a thread between the attempts:
+ * <ul>
+ *   <li>when an attempt fails the next authority is queried immediately if it has
+ *   no recent failure, otherwise the next attempt is scheduled after an exponential
+ *   backoff with jitter</li>
+ *   <li>when an authority is slower than usual (90th percentile of its response
+ *   time) a hedged request is sent to the next authority, the first response wins</li>
+ *   <li>the authorities failing repeatedly are skipped for a while (circuit breaker)</li>
+ * </ul>
+ *
+ * @since 4.2
+ */
+class TimestampingRequest<T> {
+
+    /** The maximum delay between two attempts (in milliseconds) */
+    private static final long MAX_RETRY_WAIT = 60000;
+
+    /** The scheduler triggering the retries and the hedged requests */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(daemon("jsign-timestamping-scheduler"));
+
+    /** The executor sending the requests when no executor is specified */
+    static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(daemon("jsign-timestamping"));
+
+    /**
+     * Sends the timestamping request to an authority.
+     */
+    interface Sender<T> {
+        T send(URL url) throws IOException, TimestampingException;
+    }
+
+    private final List<URL> urls;
+    private final int attempts;
+    private final long retryWait;
+    private final Sender<T> sender;
+    private final Executor executor;
+
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final TimestampingException exception;
+
+    /** The number of attempts started */
+    private int started;
+
+    /** The number of attempts in progress */
+    private int pending;
+
+    /** The number of attempts failed */
+    private int failures;
+
+    /**
+     * @param urls      the URLs of the authorities, by order of preference
+     * @param attempts  the maximum number of attempts
+     * @param retryWait the base delay before retrying an unavailable authority (in milliseconds)
+     * @param sender    the function sending the request to an authority
+     * @param executor  the executor sending the requests
+     */
+    TimestampingRequest(List<URL> urls, int attempts, long retryWait, Sender<T> sender, Executor executor) {
+        this.urls = urls;
+        this.attempts = attempts;
+        this.retryWait = retryWait;
+        this.sender = sender;
+        this.executor = executor;
+        this.exception = new TimestampingException("Unable to complete the timestamping after " + attempts + " attempt" + (attempts > 1 ? "s" : ""));
+    }
+
+    /**
+     * Sends the request.
+     *
+     * @return the future completed with the first response received, or with a
+     *         TimestampingException listing the errors if all the attempts failed
+     */
+    CompletableFuture<T> send() {
+        next();
+        return result;
+    }
+
+    /**
+     * Starts the next attempt, or completes the request if all the attempts failed.
+     */
+    private void next() {
+        URL url;
+        synchronized (this) {
+            if (result.isDone()) {
+                return;
+            }
+            if (started >= attempts) {
+                if (pending == 0) {
+                    result.completeExceptionally(exception);
+                }
+                return;
+            }
+            url = select(started++);
+            pending++;
+        }
+
+        TimestampingAuthority authority = TimestampingAuthority.get(url);
+
+        // each attempt is followed by at most one attempt, either hedged or after a failure
+        AtomicBoolean followed = new AtomicBoolean();
+
+        authority.send(() -> sender.send(url), executor).whenComplete((response, error) -> {
+            boolean exhausted;
+            synchronized (this) {
+                pending--;
+                if (error != null) {
+                    failures++;
+                    exception.addSuppressed(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                }
+                exhausted = started >= attempts && pending == 0;
+            }
+
+            if (error == null) {
+                result.complete(response);
+            } else if (followed.compareAndSet(false, true)) {
+                schedule(getRetryDelay(), this::next);
+            } else if (exhausted) {
+                // the hedged attempt already followed this one, complete the request if it was the last attempt
+                next();
+            }
+        });
+
+        long hedgingDelay = urls.size() > 1 ? authority.getHedgingDelay() : 0;
+        if (hedgingDelay > 0) {
+            SCHEDULER.schedule(() -> {
+                if (followed.compareAndSet(false, true)) {
+                    next();
+                }
+            }, hedgingDelay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Selects the authority for the specified attempt. The authorities are
+     * queried in turn, those temporarily unavailable are skipped.
+     */
+    private URL select(int attempt) {
+        for (int i = 0; i < urls.size(); i++) {
+            URL url = urls.get((attempt + i) % urls.size());
+            if (TimestampingAuthority.get(url).isAvailable()) {
+                return url;
+            }
+        }
+        return urls.get(attempt % urls.size());
+    }
+
+    /**
+     * Returns the delay before the next attempt (in milliseconds). There is
+     * no delay if the next authority is available, otherwise the delay grows
+     * exponentially with the number of failures, with a random jitter.
+     */
+    private synchronized long getRetryDelay() {
+        if (started >= attempts || TimestampingAuthority.get(select(started)).isHealthy()) {
+            return 0;
+        }
+
+        long delay = Math.min(MAX_RETRY_WAIT, retryWait << Math.min(failures - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static void schedule(long delay, Runnable task) {
+        if (delay <= 0) {
+            task.run();
+        } else {
+            SCHEDULER.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}